@@ -0,0 +1,79 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector's kernels on the JDK's incubating Vector API, at the widest vector
+ * width the CPU prefers. Lives outside src/ because it only compiles and
+ * runs with the jdk.incubator.vector module:
+ *   javac --add-modules jdk.incubator.vector -cp bin -d bin simd/SimdKernel.java
+ *   java --add-modules jdk.incubator.vector -cp bin:lib/* HasVocals ...
+ * Vector picks it up when both are true, and otherwise keeps its scalar
+ * loops.
+ * @author Michael DuBois
+ *
+ */
+public class SimdKernel implements Vector.Kernel {
+
+	private static final VectorSpecies<Double> DOUBLES =
+			DoubleVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Float> FLOATS =
+			FloatVector.SPECIES_PREFERRED;
+
+	@Override
+	public double dot(double[] v1, int offset1,
+					  double[] v2, int offset2,
+					  int length) {
+		DoubleVector sum = DoubleVector.zero(DOUBLES);
+		int bound = DOUBLES.loopBound(length);
+		int i = 0;
+		for(; i < bound; i += DOUBLES.length()) {
+			DoubleVector a = DoubleVector.fromArray(DOUBLES, v1, offset1 + i);
+			DoubleVector b = DoubleVector.fromArray(DOUBLES, v2, offset2 + i);
+			sum = a.fma(b, sum);
+		}
+		double dot = sum.reduceLanes(VectorOperators.ADD);
+		for(; i < length; i++) {
+			dot += v1[offset1 + i] * v2[offset2 + i];
+		}
+		return dot;
+	}
+
+	@Override
+	public float dot(float[] v1, int offset1,
+					 float[] v2, int offset2,
+					 int length) {
+		FloatVector sum = FloatVector.zero(FLOATS);
+		int bound = FLOATS.loopBound(length);
+		int i = 0;
+		for(; i < bound; i += FLOATS.length()) {
+			FloatVector a = FloatVector.fromArray(FLOATS, v1, offset1 + i);
+			FloatVector b = FloatVector.fromArray(FLOATS, v2, offset2 + i);
+			sum = a.fma(b, sum);
+		}
+		float dot = sum.reduceLanes(VectorOperators.ADD);
+		for(; i < length; i++) {
+			dot += v1[offset1 + i] * v2[offset2 + i];
+		}
+		return dot;
+	}
+
+	@Override
+	public void axpy(double alpha,
+					 double[] x, int xOffset,
+					 double[] y, int yOffset,
+					 int length) {
+		DoubleVector a = DoubleVector.broadcast(DOUBLES, alpha);
+		int bound = DOUBLES.loopBound(length);
+		int i = 0;
+		for(; i < bound; i += DOUBLES.length()) {
+			DoubleVector xs = DoubleVector.fromArray(DOUBLES, x, xOffset + i);
+			DoubleVector ys = DoubleVector.fromArray(DOUBLES, y, yOffset + i);
+			xs.fma(a, ys).intoArray(y, yOffset + i);
+		}
+		for(; i < length; i++) {
+			y[yOffset + i] += alpha * x[xOffset + i];
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * Base for IOptimizers. Holds the learning rate and any number of per-weight
+ * state vectors, each one flat array over every layer's weights, head
+ * first, with a layer's weights starting at its offset.
+ * Also builds optimizers from their command-line names.
+ * @author Michael DuBois
+ *
+ */
+public abstract class AbstractOptimizer implements IOptimizer {
+	
+	public static final String GRADIENT_ASCENT = "sgd";
+	public static final String MOMENTUM = "momentum";
+	public static final String RMS_PROP = "rmsprop";
+	public static final String ADAM = "adam";
+	
+	private final double mLearningRate;
+	private final int mNumStates;
+	// [state][weight]
+	protected double[][] mState;
+	// Index of each layer's first weight in the state vectors
+	protected int[] mOffsets;
+	
+	/**
+	 * Constructs an AbstractOptimizer.
+	 * @param learningRate
+	 * @param numStates - the number of per-weight state vectors needed
+	 */
+	protected AbstractOptimizer(double learningRate, int numStates) {
+		if(learningRate <= 0)
+			throw new IllegalArgumentException(
+					"learningRate must be greater than zero.");
+		mLearningRate = learningRate;
+		mNumStates = numStates;
+	}
+	
+	@Override
+	public void init(Mlp mlp) {
+		mOffsets = new int[mlp.size()];
+		int numWeights = 0;
+		Mlp.Layer current = mlp.getHead();
+		for(int l=0; current != null; l++) {
+			if(current.getWeights() == null)
+				throw new IllegalStateException(
+						"The mlp's weights must be initialized first.");
+			mOffsets[l] = numWeights;
+			numWeights += current.getWeights().length;
+			current = current.next();
+		}
+		mState = new double[mNumStates][numWeights];
+	}
+	
+	@Override
+	public void step() {}
+	
+	@Override
+	public double[][] getState() {
+		double[][] state = new double[mState.length][];
+		for(int i=0; i < state.length; i++)
+			state[i] = mState[i].clone();
+		return state;
+	}
+	
+	@Override
+	public void setState(double[][] state) {
+		if(state.length != mState.length)
+			throw new IllegalArgumentException(
+					"Expected " + mState.length + " state vectors, got " 
+					+ state.length);
+		for(int i=0; i < state.length; i++) {
+			if(state[i].length != mState[i].length)
+				throw new IllegalArgumentException(
+						"State doesn't match the mlp.");
+			System.arraycopy(state[i], 0, mState[i], 0, state[i].length);
+		}
+	}
+	
+	@Override
+	public double getLearningRate() {
+		return mLearningRate;
+	}
+	
+	/**
+	 * Returns an optimizer from its name, optionally followed by a colon and 
+	 * a learning rate, e.g. "adam" or "adam:0.005".
+	 * @param spec
+	 * @return
+	 */
+	public static IOptimizer forName(String spec) {
+		String name = spec;
+		double rate = Double.NaN;
+		int colon = spec.indexOf(':');
+		if(colon >= 0) {
+			name = spec.substring(0, colon);
+			rate = Double.parseDouble(spec.substring(colon + 1));
+		}
+		name = name.toLowerCase();
+		
+		if(name.equals(GRADIENT_ASCENT))
+			return new GradientAscent(Double.isNaN(rate) 
+					? GradientAscent.DEFAULT_LEARNING_RATE : rate);
+		if(name.equals(MOMENTUM))
+			return new Momentum(Double.isNaN(rate) 
+					? Momentum.DEFAULT_LEARNING_RATE : rate, 
+					Momentum.DEFAULT_MOMENTUM);
+		if(name.equals(RMS_PROP))
+			return new RmsProp(Double.isNaN(rate) 
+					? RmsProp.DEFAULT_LEARNING_RATE : rate, 
+					RmsProp.DEFAULT_DECAY);
+		if(name.equals(ADAM))
+			return new Adam(Double.isNaN(rate) 
+					? Adam.DEFAULT_LEARNING_RATE : rate, 
+					Adam.DEFAULT_BETA1, 
+					Adam.DEFAULT_BETA2);
+		throw new IllegalArgumentException("Unknown optimizer " + spec);
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * Adam. Keeps running averages of each weight's gradient and squared 
+ * gradient, corrects them for their zero start, and steps by their ratio,
+ * i.e. momentum with RMSProp's per-weight scaling.
+ * @author Michael DuBois
+ *
+ */
+public class Adam extends AbstractOptimizer {
+	
+	public static final double DEFAULT_LEARNING_RATE = .01;
+	public static final double DEFAULT_BETA1 = .9;
+	public static final double DEFAULT_BETA2 = .999;
+	public static final double EPSILON = 1e-8;
+	
+	private static final int MEAN = 0;
+	private static final int MEAN_SQUARE = 1;
+	
+	private final double mBeta1;
+	private final double mBeta2;
+	// The number of updates so far
+	private volatile long mStep = 0;
+	
+	/**
+	 * Constructs an Adam optimizer.
+	 * @param learningRate
+	 * @param beta1 - the fraction of the mean kept per update, in [0, 1)
+	 * @param beta2 - the fraction of the mean square kept per update, 
+	 * 			in [0, 1)
+	 */
+	public Adam(double learningRate, double beta1, double beta2) {
+		super(learningRate, 2);
+		if(beta1 < 0 || beta1 >= 1 || beta2 < 0 || beta2 >= 1)
+			throw new IllegalArgumentException("betas must be in [0, 1).");
+		mBeta1 = beta1;
+		mBeta2 = beta2;
+	}
+	
+	@Override
+	public void init(Mlp mlp) {
+		super.init(mlp);
+		mStep = 0;
+	}
+	
+	@Override
+	public synchronized void step() {
+		mStep++;
+	}
+	
+	@Override
+	public double[][] getState() {
+		// The step count goes last, in a vector of its own
+		double[][] vectors = super.getState();
+		double[][] state = new double[vectors.length + 1][];
+		System.arraycopy(vectors, 0, state, 0, vectors.length);
+		state[vectors.length] = new double[] {mStep};
+		return state;
+	}
+	
+	@Override
+	public void setState(double[][] state) {
+		if(state.length == 0 || state[state.length - 1].length != 1)
+			throw new IllegalArgumentException("Not an Adam state.");
+		double[][] vectors = new double[state.length - 1][];
+		System.arraycopy(state, 0, vectors, 0, vectors.length);
+		super.setState(vectors);
+		mStep = (long) state[state.length - 1][0];
+	}
+	
+	@Override
+	public void update(int layer, 
+					   double[] weights, 
+					   double[] gradient, 
+					   int start, 
+					   int end, 
+					   double rateScale) 
+	{
+		long t = Math.max(mStep, 1);
+		// Fold both bias corrections into the step size
+		double rate = getLearningRate() * rateScale 
+				* Math.sqrt(1 - Math.pow(mBeta2, t)) 
+				/ (1 - Math.pow(mBeta1, t));
+		double[] mean = mState[MEAN];
+		double[] meanSquare = mState[MEAN_SQUARE];
+		int offset = mOffsets[layer];
+		for(int i=start; i < end; i++) {
+			double g = gradient[i];
+			double m = mBeta1 * mean[offset + i] + (1 - mBeta1) * g;
+			double v = mBeta2 * meanSquare[offset + i] + (1 - mBeta2) * g * g;
+			mean[offset + i] = m;
+			meanSquare[offset + i] = v;
+			weights[i] += rate * m / (Math.sqrt(v) + EPSILON);
+		}
+	}
+	
+	@Override
+	public String getName() {
+		return ADAM + " (rate " + getLearningRate() 
+				+ ", betas " + mBeta1 + ", " + mBeta2 + ")";
+	}
+}
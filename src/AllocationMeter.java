@@ -0,0 +1,92 @@
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * The harness behind the allocation tests. Runs a workload, lets the JIT
+ * settle, then counts the bytes the current thread allocates over a
+ * measured run of it and exits with status 1 if any memory was allocated
+ * per sample.
+ * @author Michael DuBois
+ *
+ */
+public abstract class AllocationMeter {
+
+	public static final int FEATURE_LENGTH = 39;
+	public static final int WARMUP_SAMPLES = 200000;
+	public static final int MEASURED_SAMPLES = 1000000;
+
+	/**
+	 * Runs the workload over numSamples samples.
+	 * @param numSamples
+	 * @return a checksum of the results, so the work can't be elided
+	 */
+	protected abstract double run(int numSamples);
+
+	/**
+	 * Measures the workload, prints the results and exits with status 1 if
+	 * it allocated.
+	 * @param description - what the workload does, e.g. "scoring"
+	 */
+	public void check(String description) {
+		com.sun.management.ThreadMXBean threadBean =
+				(com.sun.management.ThreadMXBean)
+					ManagementFactory.getThreadMXBean();
+		if(!threadBean.isThreadAllocatedMemorySupported()) {
+			System.out.println("Thread allocation counting unsupported.");
+			System.exit(1);
+		}
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+
+		// Let the JIT settle before measuring
+		double sum = run(WARMUP_SAMPLES);
+
+		long threadId = Thread.currentThread().getId();
+		long before = threadBean.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		sum += run(MEASURED_SAMPLES);
+		long nanos = System.nanoTime() - start;
+		long after = threadBean.getThreadAllocatedBytes(threadId);
+
+		long allocated = after - before;
+		System.out.println("checksum: " + sum);
+		System.out.println("samples: " + MEASURED_SAMPLES
+				+ ", samples/sec: "
+				+ Math.round(MEASURED_SAMPLES / (nanos / 1e9))
+				+ ", bytes allocated: " + allocated
+				+ ", bytes/sample: "
+				+ ((double) allocated / MEASURED_SAMPLES));
+
+		// Tolerate the counter's own bookkeeping, but not per-sample garbage
+		if(allocated >= MEASURED_SAMPLES) {
+			System.out.println("FAILED: " + description
+					+ " allocated memory.");
+			System.exit(1);
+		}
+		System.out.println("PASSED");
+	}
+
+	/**
+	 * Returns HasVocals' default network, initialized for FEATURE_LENGTH
+	 * inputs.
+	 * @return
+	 */
+	public static Mlp newNetwork() {
+		Mlp mlp = HasVocals.newNeuralNetwork(HasVocals.DEFAULT_HIDDEN_SIZES);
+		mlp.evaluate(new double[FEATURE_LENGTH]);
+		return mlp;
+	}
+
+	/**
+	 * Returns random feature windows.
+	 * @param random
+	 * @param numWindows
+	 * @return
+	 */
+	public static double[][] newWindows(Random random, int numWindows) {
+		double[][] windows = new double[numWindows][FEATURE_LENGTH];
+		for(double[] window : windows)
+			for(int i=0; i < window.length; i++)
+				window[i] = random.nextGaussian();
+		return windows;
+	}
+}
@@ -0,0 +1,211 @@
+/**
+ * Back-propagates a block of samples through an Mlp at once.
+ * The forward pass, the blame computation and the gradient are each a
+ * matrix-matrix product per layer (see Matrix), computed in buffers that
+ * are allocated once for up to maxRows samples. The summed gradient is
+ * added into each layer's deltaWeights. With maxRows = 1 it is the
+ * allocation-free per-sample back-propagation MlpTrainer's TrainingTasks
+ * use.
+ * Not thread-safe; each thread needs its own BatchGradient.
+ * @author Michael DuBois
+ *
+ */
+public class BatchGradient {
+
+	private Mlp.Layer[] mLayers;
+	private int mMaxRows;
+	// Per-layer activations and blames, each [maxRows x layerSize]
+	private double[][] mActivations;
+	private double[][] mBlames;
+	// Scratch row for per-row activation derivatives
+	private double[] mRow;
+
+	/**
+	 * Constructs a BatchGradient.
+	 * @param mlp - an mlp whose weights have all been initialized
+	 * @param maxRows - the most samples that will be passed at once
+	 */
+	public BatchGradient(Mlp mlp, int maxRows) {
+		if(maxRows <= 0)
+			throw new IllegalArgumentException(
+					"maxRows must be greater than zero.");
+		mMaxRows = maxRows;
+		mLayers = new Mlp.Layer[mlp.size()];
+		mActivations = new double[mLayers.length][];
+		mBlames = new double[mLayers.length][];
+
+		int maxSize = 0;
+		Mlp.Layer current = mlp.getHead();
+		for(int l=0; current != null; l++) {
+			if(current.getWeights() == null)
+				throw new IllegalStateException(
+						"The mlp's weights must be initialized first.");
+			mLayers[l] = current;
+			mActivations[l] = new double[maxRows * current.size()];
+			mBlames[l] = new double[maxRows * current.size()];
+			maxSize = Math.max(maxSize, current.size());
+			current = current.next();
+		}
+		mRow = new double[maxSize];
+	}
+
+	/**
+	 * Runs numRows samples forward and back through the mlp and adds their
+	 * summed gradient into each layer's deltaWeights.
+	 * @param inputs - [numRows x numInputs] feature vectors, row-major
+	 * @param targets - [numRows x numOutputs] labels, row-major
+	 * @param numRows - the number of samples, at most maxRows
+	 * @return the sum of squared errors of the batch's outputs
+	 */
+	public double accumulate(double[] inputs, double[] targets, int numRows) {
+		return accumulate(inputs, 0, targets, 0, numRows);
+	}
+
+	/**
+	 * Runs numRows samples, starting at the given offsets of larger blocks,
+	 * forward and back through the mlp and adds their summed gradient into
+	 * each layer's deltaWeights.
+	 * @param inputs - feature vectors, row-major
+	 * @param inputsOffset - index of the first sample's first feature
+	 * @param targets - labels, row-major
+	 * @param targetsOffset - index of the first sample's first label
+	 * @param numRows - the number of samples, at most maxRows
+	 * @return the sum of squared errors of the batch's outputs
+	 */
+	public double accumulate(double[] inputs, int inputsOffset,
+							 double[] targets, int targetsOffset,
+							 int numRows) {
+		if(numRows > mMaxRows)
+			throw new IllegalArgumentException(
+					"numRows must be at most " + mMaxRows);
+
+		forward(inputs, inputsOffset, numRows);
+		double sumSqrResiduals = computeBlames(targets, targetsOffset, numRows);
+
+		// deltaWeights += blames^T * layer inputs, for every layer
+		for(int l=0; l < mLayers.length; l++) {
+			Mlp.Layer layer = mLayers[l];
+			int numInputs = layer.getNumInputs();
+			double[] layerInputs = (l == 0) ? inputs : mActivations[l - 1];
+			int offset = (l == 0) ? inputsOffset : 0;
+			Matrix.gemmTN(layer.size(), numInputs, numRows, 1,
+						  mBlames[l], 0, layer.size(),
+						  layerInputs, offset, numInputs,
+						  1, layer.getDeltaWeights(), 0, numInputs);
+		}
+
+		return sumSqrResiduals;
+	}
+
+	/**
+	 * Returns the output layer's activations from the last accumulate().
+	 * @return [numRows x numOutputs], row-major
+	 */
+	public double[] getOutputs() {
+		return mActivations[mLayers.length - 1];
+	}
+
+	/**
+	 * Computes every layer's activations for the batch.
+	 * @param inputs
+	 * @param inputsOffset
+	 * @param numRows
+	 */
+	private void forward(double[] inputs, int inputsOffset, int numRows) {
+		double[] layerInputs = inputs;
+		int layerInputsOffset = inputsOffset;
+		for(int l=0; l < mLayers.length; l++) {
+			Mlp.Layer layer = mLayers[l];
+			int size = layer.size();
+			int numInputs = layer.getNumInputs();
+			double[] outputs = mActivations[l];
+
+			// outputs = inputs * weights^T
+			Matrix.gemmNT(numRows, size, numInputs, 1,
+						  layerInputs, layerInputsOffset, numInputs,
+						  layer.getWeights(), 0, numInputs,
+						  0, outputs, 0, size);
+
+			Mlp.IActivationFunction act = layer.getActivationFunction();
+			if(act != null) {
+				// The first row needs no copy
+				act.apply(outputs, outputs, size);
+				for(int r=1; r < numRows; r++) {
+					int offset = r * size;
+					System.arraycopy(outputs, offset, mRow, 0, size);
+					act.apply(mRow, mRow, size);
+					System.arraycopy(mRow, 0, outputs, offset, size);
+				}
+			}
+			layerInputs = outputs;
+			layerInputsOffset = 0;
+		}
+	}
+
+	/**
+	 * Computes every layer's blames for the batch.
+	 * @param targets
+	 * @param targetsOffset
+	 * @param numRows
+	 * @return the sum of squared errors of the batch's outputs
+	 */
+	private double computeBlames(double[] targets, int targetsOffset, 
+								 int numRows) {
+		int tail = mLayers.length - 1;
+		int numOutputs = mLayers[tail].size();
+		double[] outputs = mActivations[tail];
+		double[] blames = mBlames[tail];
+		double sumSqrResiduals = 0;
+
+		// For output nodes, the blame is the sum of the differences
+		// between targets and outputs
+		for(int r=0; r < numRows; r++) {
+			int offset = r * numOutputs;
+			double errorContrib = 0;
+			for(int j=0; j < numOutputs; j++) {
+				double diff = targets[targetsOffset + offset + j] 
+						- outputs[offset + j];
+				errorContrib += diff;
+				sumSqrResiduals += diff * diff;
+			}
+			for(int j=0; j < numOutputs; j++)
+				blames[offset + j] = errorContrib;
+		}
+		scaleByDerivatives(tail, numRows);
+
+		// Back-propagate from tail: each hidden layer's blames are the next
+		// layer's blames times its weights
+		for(int l=tail - 1; l >= 0; l--) {
+			Mlp.Layer next = mLayers[l + 1];
+			int size = mLayers[l].size();
+			Matrix.gemm(numRows, size, next.size(), 1,
+						mBlames[l + 1], 0, next.size(),
+						next.getWeights(), 0, size,
+						0, mBlames[l], 0, size);
+			scaleByDerivatives(l, numRows);
+		}
+
+		return sumSqrResiduals;
+	}
+
+	/**
+	 * Multiplies a layer's blames by the derivative of its activations.
+	 * @param l - the layer index
+	 * @param numRows
+	 */
+	private void scaleByDerivatives(int l, int numRows) {
+		Mlp.IActivationFunction act = mLayers[l].getActivationFunction();
+		if(act == null)
+			return;
+		int size = mLayers[l].size();
+		double[] activations = mActivations[l];
+		double[] blames = mBlames[l];
+		for(int r=0; r < numRows; r++) {
+			int offset = r * size;
+			System.arraycopy(activations, offset, mRow, 0, size);
+			act.dydk(mRow, mRow, size);
+			for(int i=0; i < size; i++)
+				blames[offset + i] *= mRow[i];
+		}
+	}
+}
@@ -0,0 +1,248 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Estimates how well a network generalizes by k-fold cross-validation.
+ * The containers are dealt round-robin into k folds. Each fold is tested
+ * on by a network trained on the other k - 1. The data is packed into
+ * memory once and every fold reads it through its own shared readers (see
+ * DatasetCache.PackedContainer.share()), so k folds cost one load. Folds
+ * train concurrently on a pool of at most maxThreads threads, with the
+ * threads divided among them, and every fold starts from the same weights.
+ * @author Michael DuBois
+ *
+ */
+public class CrossValidation {
+
+	private static final int CELL_SIZE = 12;
+
+	/**
+	 * Makes the trainer for each fold, so each gets its own settings and
+	 * optimizer state.
+	 */
+	public interface ITrainerFactory {
+		/**
+		 * Returns a trainer for a fold's network.
+		 * @param mlp
+		 * @param out
+		 * @return
+		 */
+		public MlpTrainer newTrainer(Mlp mlp, PrintStream out);
+	}
+
+	private Mlp mInitial;
+	private ITrainerFactory mFactory;
+	private PrintStream mOut;
+	private DatasetCache mCache;
+
+	/**
+	 * Constructs a CrossValidation.
+	 * @param initial - the network each fold trains a copy of
+	 * @param factory
+	 * @param out
+	 */
+	public CrossValidation(Mlp initial,
+						   ITrainerFactory factory,
+						   PrintStream out)
+	{
+		mInitial = initial;
+		mFactory = factory;
+		mOut = out;
+	}
+
+	/**
+	 * Sets the cache the containers are packed into. It must have room for
+	 * all of them.
+	 * @param cache - or null for one with no budget limit
+	 */
+	public void setDatasetCache(DatasetCache cache) {
+		mCache = cache;
+	}
+
+	/**
+	 * Trains and tests every fold and prints the per-fold and aggregate
+	 * results.
+	 * @param containers - all the data, to be split into folds
+	 * @param numFolds - k
+	 * @param minDeltaError
+	 * @param maxEpochs
+	 * @param maxThreads
+	 * @return the mean of the folds' testing errors
+	 * @throws IDataContainer.DataUnavailableException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public double run(IDataContainer[] containers,
+					  int numFolds,
+					  double minDeltaError,
+					  int maxEpochs,
+					  int maxThreads)
+			throws IDataContainer.DataUnavailableException,
+				   InterruptedException,
+				   ExecutionException
+	{
+		if(numFolds < 2 || numFolds > containers.length)
+			throw new IllegalArgumentException("Can't make " + numFolds
+					+ " folds of " + containers.length + " containers.");
+		long startTime = System.currentTimeMillis();
+
+		// Pack everything once, for every fold to share
+		DatasetCache cache = (mCache != null)
+				? mCache : new DatasetCache(Long.MAX_VALUE, false);
+		IDataContainer[] packed = cache.cache(containers);
+		if(DatasetCache.countPacked(packed) < packed.length)
+			throw new IllegalStateException("Only "
+					+ DatasetCache.countPacked(packed) + "/" + packed.length
+					+ " containers fit in the cache. Cross-validation "
+					+ "needs them all in memory.");
+		mOut.println("Packed " + packed.length + " containers in "
+				+ (cache.getUsedBytes() / 1024) + "KB in "
+				+ (System.currentTimeMillis() - startTime) + "ms.");
+
+		// Every fold starts from the same weights
+		Mlp initial = new Mlp(mInitial);
+		new MlpTrainer(initial, quiet()).prepareNetwork(packed);
+
+		int numThreads = Math.min(maxThreads,
+				Runtime.getRuntime().availableProcessors());
+		int numConcurrent = Math.max(1, Math.min(numFolds, numThreads));
+		int threadsPerFold = Math.max(1, numThreads / numConcurrent);
+		mOut.println("Cross-validating " + numFolds + " folds, "
+				+ numConcurrent + " at a time on " + threadsPerFold
+				+ " threads each...");
+
+		List<Fold> folds = new ArrayList<Fold>();
+		for(int f=0; f < numFolds; f++)
+			folds.add(new Fold(f, numFolds, packed, new Mlp(initial),
+							   minDeltaError, maxEpochs, threadsPerFold));
+
+		ExecutorService executor = Executors.newFixedThreadPool(numConcurrent);
+		try {
+			List<Future<Void>> futures = executor.invokeAll(folds);
+			for(Future<Void> future : futures)
+				future.get();
+		} finally {
+			executor.shutdownNow();
+		}
+		long elapsed = System.currentTimeMillis() - startTime;
+		return printReport(folds, elapsed);
+	}
+
+	/**
+	 * Prints a row per fold, then the mean and standard deviation of their
+	 * errors and how long they took together and would have in series.
+	 * @param folds
+	 * @param elapsed
+	 * @return the mean error
+	 */
+	private double printReport(List<Fold> folds, long elapsed) {
+		mOut.println("Cross-validation complete.");
+		mOut.println(MlpTrainer.paddedCell("fold", 6)
+				+ "| " + MlpTrainer.paddedCell("train", CELL_SIZE)
+				+ "| " + MlpTrainer.paddedCell("test", CELL_SIZE)
+				+ "| " + MlpTrainer.paddedCell("epochs", CELL_SIZE)
+				+ "| " + MlpTrainer.paddedCell("ms", CELL_SIZE)
+				+ "| error");
+		double sum = 0;
+		double sumSqr = 0;
+		long serialMillis = 0;
+		for(Fold fold : folds) {
+			mOut.println(MlpTrainer.paddedCell("" + fold.mIdx, 6)
+				+ "| " + MlpTrainer.paddedCell("" + fold.mTraining.length,
+											   CELL_SIZE)
+				+ "| " + MlpTrainer.paddedCell("" + fold.mTesting.length,
+											   CELL_SIZE)
+				+ "| " + MlpTrainer.paddedCell("" + fold.mEpochs, CELL_SIZE)
+				+ "| " + MlpTrainer.paddedCell("" + fold.mMillis, CELL_SIZE)
+				+ "| " + fold.mError);
+			sum += fold.mError;
+			sumSqr += fold.mError * fold.mError;
+			serialMillis += fold.mMillis;
+		}
+		int k = folds.size();
+		double mean = sum / k;
+		double std = Math.sqrt(Math.max(0, (sumSqr - k * mean * mean)
+												/ (k - 1)));
+		mOut.println("Mean error " + mean + " +/- " + std + " (std).");
+		mOut.println("Wall-clock " + elapsed + "ms, against "
+				+ serialMillis + "ms of fold training.");
+		return mean;
+	}
+
+	/**
+	 * Returns a stream that discards what's printed to it. Folds train at
+	 * the same time, so their logs would only interleave.
+	 * @return
+	 */
+	private static PrintStream quiet() {
+		return new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {}
+		});
+	}
+
+	/**
+	 * Trains on all the folds but one and tests on that one.
+	 */
+	private class Fold implements Callable<Void> {
+		private int mIdx;
+		private IDataContainer[] mTraining;
+		private IDataContainer[] mTesting;
+		private Mlp mMlp;
+		private double mMinDeltaError;
+		private int mMaxEpochs;
+		private int mNumThreads;
+
+		private int mEpochs;
+		private double mError;
+		private long mMillis;
+
+		Fold(int idx,
+			 int numFolds,
+			 IDataContainer[] packed,
+			 Mlp mlp,
+			 double minDeltaError,
+			 int maxEpochs,
+			 int numThreads)
+		{
+			mIdx = idx;
+			mMlp = mlp;
+			mMinDeltaError = minDeltaError;
+			mMaxEpochs = maxEpochs;
+			mNumThreads = numThreads;
+
+			List<IDataContainer> training = new ArrayList<IDataContainer>();
+			List<IDataContainer> testing = new ArrayList<IDataContainer>();
+			for(int i=0; i < packed.length; i++) {
+				IDataContainer reader =
+						((DatasetCache.PackedContainer) packed[i]).share();
+				if(i % numFolds == idx)
+					testing.add(reader);
+				else
+					training.add(reader);
+			}
+			mTraining = training.toArray(new IDataContainer[training.size()]);
+			mTesting = testing.toArray(new IDataContainer[testing.size()]);
+		}
+
+		@Override
+		public Void call() {
+			long start = System.currentTimeMillis();
+			MlpTrainer trainer = mFactory.newTrainer(mMlp, quiet());
+			mEpochs = trainer.trainMlp(mTraining, mTesting, mMinDeltaError,
+									   mMaxEpochs, mNumThreads);
+			mError = trainer.getLastError();
+			mMillis = System.currentTimeMillis() - start;
+			mOut.println("Fold " + mIdx + " complete. Error " + mError
+					+ ", " + mEpochs + " epochs, " + mMillis + "ms.");
+			return null;
+		}
+	} // End Fold
+}
@@ -0,0 +1,327 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Keeps labeled data in memory across epochs. Each container is read once
+ * and packed into two contiguous blocks of doubles, one of features and one
+ * of labels, row-major, either on the heap or off-heap in direct memory.
+ * Later epochs read the packed rows instead of re-reading and re-parsing
+ * the source. Containers are cached until the memory budget runs out; the
+ * rest are left to stream from their source every epoch as before.
+ * @author Michael DuBois
+ *
+ */
+public class DatasetCache {
+
+	private static final int BYTES_PER_DOUBLE = 8;
+	// Rows to make room for before a container's size is known
+	private static final int INITIAL_ROWS = 1024;
+
+	private final long mBudgetBytes;
+	private final boolean mOffHeap;
+	private long mUsedBytes = 0;
+	// Packed copies keyed by the container they were read from, and the
+	// containers that didn't fit
+	private final Map<IDataContainer, PackedContainer> mPacked =
+			new IdentityHashMap<IDataContainer, PackedContainer>();
+	private final Map<IDataContainer, Boolean> mRejected =
+			new IdentityHashMap<IDataContainer, Boolean>();
+
+	/**
+	 * Constructs a DatasetCache.
+	 * @param budgetBytes - the most bytes of packed data to hold
+	 * @param offHeap - whether to store the data in direct memory, outside
+	 * 			the garbage-collected heap
+	 */
+	public DatasetCache(long budgetBytes, boolean offHeap) {
+		if(budgetBytes < 0)
+			throw new IllegalArgumentException(
+					"budgetBytes must not be negative.");
+		mBudgetBytes = budgetBytes;
+		mOffHeap = offHeap;
+	}
+
+	/**
+	 * Returns the containers with each one that fits in the budget replaced
+	 * by its packed in-memory copy, reading it first if it hasn't been read.
+	 * Containers that don't fit are returned as they are.
+	 * @param containers
+	 * @return a new array the same length as containers
+	 * @throws IDataContainer.DataUnavailableException
+	 */
+	public synchronized IDataContainer[] cache(IDataContainer[] containers)
+			throws IDataContainer.DataUnavailableException
+	{
+		IDataContainer[] cached = new IDataContainer[containers.length];
+		for(int i=0; i < containers.length; i++) {
+			IDataContainer container = containers[i];
+			PackedContainer packed = mPacked.get(container);
+			if(packed == null && !(container instanceof PackedContainer)
+					&& !mRejected.containsKey(container))
+			{
+				packed = pack(container);
+				if(packed != null)
+					mPacked.put(container, packed);
+				else
+					mRejected.put(container, Boolean.TRUE);
+			}
+			cached[i] = (packed != null) ? packed : container;
+		}
+		return cached;
+	}
+
+	/**
+	 * Returns the bytes of packed data held.
+	 * @return
+	 */
+	public synchronized long getUsedBytes() {
+		return mUsedBytes;
+	}
+
+	/**
+	 * Returns the most bytes of packed data this cache will hold.
+	 * @return
+	 */
+	public long getBudgetBytes() {
+		return mBudgetBytes;
+	}
+
+	/**
+	 * Returns whether the data is stored off-heap.
+	 * @return
+	 */
+	public boolean isOffHeap() {
+		return mOffHeap;
+	}
+
+	/**
+	 * Returns the number of containers in the array that are served from
+	 * memory.
+	 * @param containers
+	 * @return
+	 */
+	public static int countPacked(IDataContainer[] containers) {
+		int count = 0;
+		for(IDataContainer container : containers) {
+			if(container instanceof PackedContainer)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Reads a container and packs it if it fits in what's left of the
+	 * budget. Rows are copied straight into growing blocks, and reading
+	 * stops as soon as the budget is exceeded, so a container that doesn't
+	 * fit is never held in full.
+	 * @param container
+	 * @return the packed copy, or null if it doesn't fit
+	 * @throws IDataContainer.DataUnavailableException
+	 */
+	private PackedContainer pack(IDataContainer container)
+			throws IDataContainer.DataUnavailableException
+	{
+		long budget = mBudgetBytes - mUsedBytes;
+		double[] features = null;
+		double[] labels = null;
+		boolean[] fakes = null;
+		int numRows = 0;
+		int featureLength = 0;
+		int labelLength = 0;
+		int baseFeatureLength = 0;
+		int highestDerivative = 0;
+		// The most rows the budget and the largest block allow
+		long maxRows = 0;
+		try {
+			container.open();
+			while(container.hasNext()) {
+				LabeledData datum = container.next();
+				double[] rowFeatures = datum.getFeatures();
+				double[] rowLabels = datum.getLabels();
+				if(features == null) {
+					featureLength = rowFeatures.length;
+					labelLength = rowLabels.length;
+					baseFeatureLength = datum.baseFeatureLength();
+					highestDerivative = datum.highestDerivative();
+					long rowBytes = (long) (featureLength + labelLength)
+							* BYTES_PER_DOUBLE;
+					maxRows = Math.min(budget / Math.max(rowBytes, 1),
+							maxBlockLength() 
+								/ Math.max(Math.max(featureLength, 
+													labelLength), 1));
+					int capacity = (int) Math.min(INITIAL_ROWS, maxRows);
+					features = new double[capacity * featureLength];
+					labels = new double[capacity * labelLength];
+					fakes = new boolean[capacity];
+				} else if(rowFeatures.length != featureLength
+						|| rowLabels.length != labelLength) {
+					throw new IllegalStateException("Rows in a container "
+							+ "must all be the same length.");
+				}
+				if(numRows >= maxRows)
+					return null;
+				if(numRows == fakes.length) {
+					int capacity = (int) Math.min(2L * numRows, maxRows);
+					features = Arrays.copyOf(features, 
+											 capacity * featureLength);
+					labels = Arrays.copyOf(labels, capacity * labelLength);
+					fakes = Arrays.copyOf(fakes, capacity);
+				}
+				System.arraycopy(rowFeatures, 0, features, 
+								 numRows * featureLength, featureLength);
+				System.arraycopy(rowLabels, 0, labels, 
+								 numRows * labelLength, labelLength);
+				fakes[numRows] = datum.isFake();
+				numRows++;
+			}
+		} finally {
+			try { container.close(); } catch(Exception e) {}
+		}
+
+		long bytes = (long) numRows * (featureLength + labelLength)
+				* BYTES_PER_DOUBLE;
+		DoubleBuffer featureBlock = 
+				allocate(features, numRows * featureLength);
+		DoubleBuffer labelBlock = allocate(labels, numRows * labelLength);
+		mUsedBytes += bytes;
+
+		return new PackedContainer(featureBlock, labelBlock, 
+								   (fakes == null) ? new boolean[0] 
+										   : Arrays.copyOf(fakes, numRows),
+								   numRows, featureLength, labelLength,
+								   baseFeatureLength, highestDerivative);
+	}
+
+	/**
+	 * Returns the most doubles one block can hold: an array's limit on the
+	 * heap, or what a direct buffer's int capacity in bytes allows.
+	 * @return
+	 */
+	private long maxBlockLength() {
+		return mOffHeap ? Integer.MAX_VALUE / BYTES_PER_DOUBLE 
+				: Integer.MAX_VALUE - 8;
+	}
+
+	/**
+	 * Moves the first length doubles of a block into its final home, on or
+	 * off the heap.
+	 * @param values - or null if there are none
+	 * @param length
+	 * @return
+	 */
+	private DoubleBuffer allocate(double[] values, int length) {
+		if(values == null)
+			values = new double[0];
+		if(mOffHeap) {
+			long bytes = (long) length * BYTES_PER_DOUBLE;
+			if(bytes > Integer.MAX_VALUE)
+				throw new IllegalArgumentException(
+						"Blocks are limited to 2GB off-heap.");
+			DoubleBuffer block = ByteBuffer.allocateDirect((int) bytes)
+					.order(ByteOrder.nativeOrder())
+					.asDoubleBuffer();
+			block.put(values, 0, length);
+			return block;
+		}
+		if(values.length != length)
+			values = Arrays.copyOf(values, length);
+		return DoubleBuffer.wrap(values);
+	}
+
+	/**
+	 * A container served from packed rows in memory. next() copies a row
+	 * into one LabeledData that is reused, so the returned data is only
+	 * valid until the next call. Like any container, it should only be
+	 * read by one thread at a time, but share() gives out more readers.
+	 * @author Michael DuBois
+	 *
+	 */
+	public static class PackedContainer implements IDataContainer {
+
+		private final DoubleBuffer mFeatures;
+		private final DoubleBuffer mLabels;
+		private final boolean[] mIsFake;
+		private final int mNumRows;
+		private final int mFeatureLength;
+		private final int mLabelLength;
+		private final LabeledData mRow;
+		private int mIdx = 0;
+
+		PackedContainer(DoubleBuffer features,
+						DoubleBuffer labels,
+						boolean[] isFake,
+						int numRows,
+						int featureLength,
+						int labelLength,
+						int baseFeatureLength,
+						int highestDerivative)
+		{
+			mFeatures = features;
+			mLabels = labels;
+			mIsFake = isFake;
+			mNumRows = numRows;
+			mFeatureLength = featureLength;
+			mLabelLength = labelLength;
+			mRow = new LabeledData(new double[featureLength],
+								   baseFeatureLength,
+								   highestDerivative,
+								   new double[labelLength]);
+		}
+
+		/**
+		 * Returns the number of rows held.
+		 * @return
+		 */
+		public int size() {
+			return mNumRows;
+		}
+
+		/**
+		 * Returns another reader of the same packed rows, with its own
+		 * position. Readers of one copy may run on different threads.
+		 * @return
+		 */
+		public PackedContainer share() {
+			return new PackedContainer(mFeatures, mLabels, mIsFake, mNumRows,
+									   mFeatureLength, mLabelLength,
+									   mRow.baseFeatureLength(),
+									   mRow.highestDerivative());
+		}
+
+		@Override
+		public void open() {
+			mIdx = 0;
+		}
+
+		@Override
+		public void close() {
+			mIdx = mNumRows;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return mIdx < mNumRows;
+		}
+
+		@Override
+		public LabeledData next() throws DataUnavailableException {
+			if(mIdx >= mNumRows)
+				throw new DataUnavailableException("No more rows.");
+			double[] features = mRow.getFeatures();
+			double[] labels = mRow.getLabels();
+			int featureOffset = mIdx * mFeatureLength;
+			for(int i=0; i < mFeatureLength; i++)
+				features[i] = mFeatures.get(featureOffset + i);
+			int labelOffset = mIdx * mLabelLength;
+			for(int i=0; i < mLabelLength; i++)
+				labels[i] = mLabels.get(labelOffset + i);
+			mRow.setIsFake(mIsFake[mIdx]);
+			mIdx++;
+			return mRow;
+		}
+	} // End PackedContainer
+}
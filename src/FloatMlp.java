@@ -0,0 +1,276 @@
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An inference-only, 32-bit floating point copy of a trained Mlp.
+ * Halves the memory traffic of scoring compared to the double-precision
+ * network. Like FrozenMlp it is immutable and may be shared by any number
+ * of threads.
+ * @author Michael DuBois
+ *
+ */
+public final class FloatMlp {
+
+	private final int mNumInputs;
+	private final int[] mLayerSizes;
+	private final int[] mLayerInputs;
+	// Weights per layer arranged as [nodeIdx * layerInputs + inputIdx]
+	private final float[][] mWeights;
+	// MlpFile.ACTIVATION_* type and alpha of each layer
+	private final int[] mActivationTypes;
+	private final float[] mActivationAlphas;
+
+	/**
+	 * Constructs a float copy of a double-precision snapshot.
+	 * @param mlp
+	 */
+	public FloatMlp(FrozenMlp mlp) {
+		int numLayers = mlp.size();
+		mLayerSizes = new int[numLayers];
+		mLayerInputs = new int[numLayers];
+		mWeights = new float[numLayers][];
+		mActivationTypes = new int[numLayers];
+		mActivationAlphas = new float[numLayers];
+
+		for(int l=0; l < numLayers; l++) {
+			mLayerSizes[l] = mlp.getLayerSize(l);
+			mLayerInputs[l] = mlp.getLayerInputs(l);
+			double[] weights = mlp.getWeights(l);
+			mWeights[l] = new float[weights.length];
+			toFloats(weights, mWeights[l]);
+			Mlp.IActivationFunction func = mlp.getActivationFunction(l);
+			mActivationTypes[l] = MlpFile.activationType(func);
+			mActivationAlphas[l] = (float) MlpFile.activationAlpha(func);
+		}
+		mNumInputs = mlp.getNumInputs();
+	}
+
+	/**
+	 * Constructs a float copy of a trained Mlp.
+	 * @param mlp - an mlp whose weights have all been initialized
+	 */
+	public FloatMlp(Mlp mlp) {
+		this(mlp.freeze());
+	}
+
+	/**
+	 * Loads a float model from a model file written by Mlp.writeToFile().
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static FloatMlp loadFromFile(File file) throws IOException {
+		return new FloatMlp(MlpFile.read(file));
+	}
+
+	/**
+	 * Returns the model's evaluation of this input. Allocates its own
+	 * buffers, so it's safe to call from any thread.
+	 * @param inputs - the feature vector to evaluate
+	 * @return
+	 */
+	public float[] evaluate(float[] inputs) {
+		return evaluate(inputs, newWorkspace()).clone();
+	}
+
+	/**
+	 * Returns the model's evaluation of this input, computed in the given
+	 * workspace's buffers without allocating.
+	 * @param inputs - the feature vector to evaluate
+	 * @param workspace - buffers from newWorkspace(), owned by this thread
+	 * @return the output buffer in workspace, which is overwritten by the
+	 * 			next call that uses the same workspace
+	 */
+	public float[] evaluate(float[] inputs, Workspace workspace) {
+		if(inputs.length != mNumInputs)
+			throw new IllegalArgumentException(
+					"Expected " + mNumInputs + " inputs, got "
+					+ inputs.length);
+		if(!fits(workspace))
+			throw new IllegalArgumentException(
+					"The workspace was not made for this mlp.");
+
+		float[] outputs = inputs;
+		for(int l=0; l < mLayerSizes.length; l++) {
+			float[] layerInputs = outputs;
+			float[] weights = mWeights[l];
+			int numInputs = mLayerInputs[l];
+			outputs = workspace.mBuffers[l];
+
+			for(int i=0; i < mLayerSizes[l]; i++) {
+				outputs[i] = Vector.dot(weights, i * numInputs,
+										layerInputs, 0,
+										numInputs);
+			}
+
+			activate(mActivationTypes[l], mActivationAlphas[l], outputs);
+		}
+		return outputs;
+	}
+
+	/**
+	 * Returns the model's evaluation of a double-precision input.
+	 * @param inputs - the feature vector to evaluate
+	 * @param workspace - buffers from newWorkspace(), owned by this thread
+	 * @return the output buffer in workspace
+	 */
+	public float[] evaluate(double[] inputs, Workspace workspace) {
+		// Check here, the float[] overload only sees the workspace's copy
+		if(inputs.length != mNumInputs)
+			throw new IllegalArgumentException(
+					"Expected " + mNumInputs + " inputs, got "
+					+ inputs.length);
+		if(!fits(workspace))
+			throw new IllegalArgumentException(
+					"The workspace was not made for this mlp.");
+		toFloats(inputs, workspace.mInputs);
+		return evaluate(workspace.mInputs, workspace);
+	}
+
+	/**
+	 * Returns whether a workspace's buffers are sized for this model's
+	 * layers.
+	 * @param workspace
+	 * @return
+	 */
+	private boolean fits(Workspace workspace) {
+		if(workspace.mInputs.length != mNumInputs
+				|| workspace.mBuffers.length != mLayerSizes.length)
+			return false;
+		for(int l=0; l < mLayerSizes.length; l++) {
+			if(workspace.mBuffers[l].length != mLayerSizes[l])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a new Workspace sized for this model's layers.
+	 * @return
+	 */
+	public Workspace newWorkspace() {
+		return new Workspace(mNumInputs, mLayerSizes);
+	}
+
+	/**
+	 * Returns the largest absolute difference between this model's outputs
+	 * and a double-precision reference's outputs over every datum in the
+	 * given containers.
+	 * @param reference - the network this model was built from
+	 * @param containers - the data to compare over
+	 * @return
+	 * @throws IDataContainer.DataUnavailableException
+	 */
+	public double maxDeviation(FrozenMlp reference,
+							   IDataContainer[] containers)
+		throws IDataContainer.DataUnavailableException
+	{
+		Workspace workspace = newWorkspace();
+		Mlp.Workspace refWorkspace = reference.newWorkspace();
+		double maxDeviation = 0;
+
+		for(IDataContainer container : containers) {
+			try {
+				container.open();
+				while(container.hasNext()) {
+					double[] feats = container.next().getFeatures();
+					double[] expected = reference.evaluate(feats, refWorkspace);
+					float[] actual = evaluate(feats, workspace);
+					for(int i=0; i < expected.length; i++) {
+						maxDeviation = Math.max(maxDeviation,
+										Math.abs(expected[i] - actual[i]));
+					}
+				}
+			} finally {
+				try { container.close(); } catch(Exception e) {}
+			}
+		}
+		return maxDeviation;
+	}
+
+	/**
+	 * Applies an MlpFile.ACTIVATION_* function to outputs in-place.
+	 * @param type
+	 * @param alpha
+	 * @param outputs
+	 */
+	private static void activate(int type, float alpha, float[] outputs) {
+		int len = outputs.length;
+		if(type == MlpFile.ACTIVATION_LOGISTIC
+				|| (type == MlpFile.ACTIVATION_SOFTMAX && len == 1)) {
+			// Overflow-safe equivalent of standard logistic function
+			float halfAlpha = alpha * .5f;
+			for(int i=0; i < len; i++)
+				outputs[i] = .5f * (1f + (float) Math.tanh(halfAlpha*outputs[i]));
+		} else if(type == MlpFile.ACTIVATION_SOFTMAX) {
+			float a = outputs[0];
+			for(int i=1; i < len; i++)
+				a = Math.max(a, outputs[i]);
+			float Z = 0f;
+			for(int i=0; i < len; i++) {
+				outputs[i] = (float) Math.exp(alpha * (outputs[i] - a));
+				Z += outputs[i];
+			}
+			float invZ = 1f / Z;
+			for(int i=0; i < len; i++)
+				outputs[i] *= invZ;
+		}
+	}
+
+	/**
+	 * Copies doubles into a float array, rounding to nearest.
+	 * @param src
+	 * @param dst - at least as long as src
+	 */
+	public static void toFloats(double[] src, float[] dst) {
+		for(int i=0; i < src.length; i++)
+			dst[i] = (float) src[i];
+	}
+
+	/**
+	 * Reports the max deviation of the float model from the double model
+	 * over some labeled data.
+	 * Usage: FloatMlp path/to/model data1.mfc [data2.mfc ...]
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length < 2) {
+			System.out.println("Usage: FloatMlp path/to/model "
+					+ "data.mfc [data.mfc ...]");
+			System.exit(1);
+		}
+		FrozenMlp reference = FrozenMlp.loadFromFile(new File(args[0]));
+		FloatMlp floatMlp = new FloatMlp(reference);
+
+		IDataContainer[] containers = new IDataContainer[args.length - 1];
+		for(int i=1; i < args.length; i++)
+			containers[i - 1] = new LabeledDataContainer(new File(args[i]));
+
+		System.out.println("Max deviation from double outputs: "
+				+ floatMlp.maxDeviation(reference, containers));
+	}
+
+	/**
+	 * Preallocated per-layer float buffers for FloatMlp.evaluate(inputs,
+	 * workspace). Not thread-safe; each thread needs its own.
+	 * @author Michael DuBois
+	 *
+	 */
+	public static class Workspace {
+
+		private final float[] mInputs;
+		private final float[][] mBuffers;
+
+		/**
+		 * Constructs a Workspace.
+		 * @param numInputs - the length of the model's feature vectors
+		 * @param layerSizes - the number of nodes in each layer
+		 */
+		Workspace(int numInputs, int[] layerSizes) {
+			mInputs = new float[numInputs];
+			mBuffers = new float[layerSizes.length][];
+			for(int i=0; i < layerSizes.length; i++)
+				mBuffers[i] = new float[layerSizes[i]];
+		}
+
+	} // End Workspace
+}
@@ -0,0 +1,210 @@
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An immutable, read-only snapshot of a trained Mlp.
+ * The weights are copied into flat row-major arrays when the snapshot is
+ * taken, and there is no lazy initialization or training state, so any
+ * number of threads may evaluate the same FrozenMlp at once without copies
+ * or locks.
+ * @author Michael DuBois
+ *
+ */
+public final class FrozenMlp {
+
+	private final int mNumInputs;
+	private final int[] mLayerSizes;
+	private final int[] mLayerInputs;
+	// Weights per layer arranged as [nodeIdx * layerInputs + inputIdx]
+	private final double[][] mWeights;
+	private final Mlp.IActivationFunction[] mActivationFunctions;
+
+	/**
+	 * Takes a snapshot of an Mlp. Later changes to mlp are not reflected.
+	 * @param mlp - an mlp whose weights have all been initialized
+	 */
+	public FrozenMlp(Mlp mlp) {
+		int numLayers = mlp.size();
+		mLayerSizes = new int[numLayers];
+		mLayerInputs = new int[numLayers];
+		mWeights = new double[numLayers][];
+		mActivationFunctions = new Mlp.IActivationFunction[numLayers];
+
+		Mlp.Layer current = mlp.getHead();
+		for(int i=0; current != null; i++) {
+			if(current.getWeights() == null)
+				throw new IllegalStateException(
+						"Can't freeze an mlp before its weights "
+						+ "are initialized.");
+			mLayerSizes[i] = current.size();
+			mLayerInputs[i] = current.getNumInputs();
+			mWeights[i] = current.getWeights().clone();
+			mActivationFunctions[i] = current.getActivationFunction();
+			current = current.next();
+		}
+		mNumInputs = (numLayers > 0) ? mLayerInputs[0] : 0;
+	}
+
+	/**
+	 * Constructs a snapshot directly from its arrays, which it takes
+	 * ownership of.
+	 * @param layerSizes - the number of nodes in each layer
+	 * @param layerInputs - the length of the inputs to each layer
+	 * @param weights - each layer's weights, laid out like
+	 * 					Mlp.Layer.getWeights()
+	 * @param funcs - each layer's activation function, or null
+	 */
+	FrozenMlp(int[] layerSizes,
+			  int[] layerInputs,
+			  double[][] weights,
+			  Mlp.IActivationFunction[] funcs)
+	{
+		for(int l=0; l < layerSizes.length; l++) {
+			if(weights[l].length != layerSizes[l] * layerInputs[l])
+				throw new IllegalArgumentException(
+						"Layer " + l + " has the wrong number of weights.");
+			if(l > 0 && layerInputs[l] != layerSizes[l - 1])
+				throw new IllegalArgumentException(
+						"Layer " + l + " doesn't fit the previous layer.");
+		}
+		mLayerSizes = layerSizes;
+		mLayerInputs = layerInputs;
+		mWeights = weights;
+		mActivationFunctions = funcs;
+		mNumInputs = (layerSizes.length > 0) ? layerInputs[0] : 0;
+	}
+
+	/**
+	 * Loads a snapshot from a model file written by Mlp.writeToFile().
+	 * The file is memory-mapped and the weights are copied straight out of
+	 * the mapped buffer.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static FrozenMlp loadFromFile(File file) throws IOException {
+		return MlpFile.read(file);
+	}
+
+	/**
+	 * Returns a new trainable Mlp with a copy of this snapshot's weights.
+	 * @return
+	 */
+	public Mlp toMlp() {
+		Mlp mlp = new Mlp();
+		for(int l=0; l < mLayerSizes.length; l++) {
+			Mlp.Layer layer =
+					new Mlp.Layer(mLayerSizes[l], mActivationFunctions[l]);
+			layer.setWeights(mWeights[l].clone());
+			mlp.append(layer);
+		}
+		return mlp;
+	}
+
+	/**
+	 * Returns the snapshot's evaluation of this input. Allocates its own
+	 * buffers, so it's safe to call from any thread.
+	 * @param inputs - the feature vector to evaluate
+	 * @return
+	 */
+	public double[] evaluate(double[] inputs) {
+		return evaluate(inputs, newWorkspace()).clone();
+	}
+
+	/**
+	 * Returns the snapshot's evaluation of this input, computed in the
+	 * given workspace's buffers without allocating.
+	 * @param inputs - the feature vector to evaluate
+	 * @param workspace - buffers from newWorkspace(), owned by this thread
+	 * @return the output buffer in workspace, which is overwritten by the
+	 * 			next call that uses the same workspace
+	 */
+	public double[] evaluate(double[] inputs, Mlp.Workspace workspace) {
+		if(inputs.length != mNumInputs)
+			throw new IllegalArgumentException(
+					"Expected " + mNumInputs + " inputs, got "
+					+ inputs.length);
+		if(workspace.size() != mLayerSizes.length)
+			throw new IllegalArgumentException(
+					"The workspace was not made for this mlp.");
+
+		double[] outputs = inputs;
+		for(int l=0; l < mLayerSizes.length; l++) {
+			double[] layerInputs = outputs;
+			double[] weights = mWeights[l];
+			int numInputs = mLayerInputs[l];
+			outputs = workspace.getBuffer(l);
+
+			Matrix.gemv(mLayerSizes[l], numInputs, 1,
+						weights, 0, numInputs,
+						layerInputs, 0,
+						0, outputs, 0);
+
+			Mlp.IActivationFunction func = mActivationFunctions[l];
+			if(func != null)
+				func.apply(outputs, outputs, outputs.length);
+		}
+		return outputs;
+	}
+
+	/**
+	 * Returns a new Workspace sized for this snapshot's layers.
+	 * @return
+	 */
+	public Mlp.Workspace newWorkspace() {
+		return new Mlp.Workspace(mLayerSizes);
+	}
+
+	/**
+	 * Returns the length of the feature vectors this snapshot accepts.
+	 * @return
+	 */
+	public int getNumInputs() {
+		return mNumInputs;
+	}
+
+	/**
+	 * Returns the number of layers in this snapshot.
+	 * @return
+	 */
+	public int size() {
+		return mLayerSizes.length;
+	}
+
+	/**
+	 * Returns the number of nodes in the given layer.
+	 * @param layerIdx
+	 * @return
+	 */
+	public int getLayerSize(int layerIdx) {
+		return mLayerSizes[layerIdx];
+	}
+
+	/**
+	 * Returns the length of the inputs to the given layer.
+	 * @param layerIdx
+	 * @return
+	 */
+	public int getLayerInputs(int layerIdx) {
+		return mLayerInputs[layerIdx];
+	}
+
+	/**
+	 * Returns a copy of the given layer's weights, laid out like
+	 * Mlp.Layer.getWeights().
+	 * @param layerIdx
+	 * @return
+	 */
+	public double[] getWeights(int layerIdx) {
+		return mWeights[layerIdx].clone();
+	}
+
+	/**
+	 * Returns the activation function of the given layer.
+	 * @param layerIdx
+	 * @return null if the layer has none
+	 */
+	public Mlp.IActivationFunction getActivationFunction(int layerIdx) {
+		return mActivationFunctions[layerIdx];
+	}
+}
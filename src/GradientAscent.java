@@ -0,0 +1,31 @@
+/**
+ * Plain gradient ascent on the deltaWeights, with no state. This is the
+ * update MlpTrainer has always made.
+ * @author Michael DuBois
+ *
+ */
+public class GradientAscent extends AbstractOptimizer {
+	
+	public static final double DEFAULT_LEARNING_RATE = 1;
+	
+	public GradientAscent(double learningRate) {
+		super(learningRate, 0);
+	}
+	
+	@Override
+	public void update(int layer, 
+					   double[] weights, 
+					   double[] gradient, 
+					   int start, 
+					   int end, 
+					   double rateScale) 
+	{
+		Vector.axpy(getLearningRate() * rateScale, gradient, start, 
+					weights, start, end - start);
+	}
+	
+	@Override
+	public String getName() {
+		return GRADIENT_ASCENT + " (rate " + getLearningRate() + ")";
+	}
+}
@@ -5,11 +5,14 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
 
 import au.com.bytecode.opencsv.CSVReader;
 
@@ -22,6 +25,15 @@ public class HasVocals {
 
 	public static final String TAG = "HasVocals";
 	public static final int MAIN_REQUIRED_ARGS = 1;
+	// Distributed workers shuffle the file list alike, so shards don't 
+	// overlap
+	public static final long SHARD_SEED = 0x5EEDL;
+	public static final int[] DEFAULT_HIDDEN_SIZES = new int[] {30, 10};
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 10;
+	public static final int DEFAULT_FULL_EVALUATION_INTERVAL = 10;
+	// Lists the files a checkpointed session trains on, next to the 
+	// checkpoint itself
+	public static final String CHECKPOINT_FILES_SUFFIX = ".files";
 	
 	public static void main(String[] args) throws IllegalArgumentException {
 		
@@ -31,9 +43,33 @@ public class HasVocals {
 		int maxEpochs = 1000;
 		int maxThreads = Integer.MAX_VALUE;
 		double minDeltaError = .00001;
+		int batchSize = 0;
+		double targetError = Double.NEGATIVE_INFINITY;
+		boolean asynchronous = false;
+		boolean pipelined = false;
+		int validationSize = 0;
+		int fullEvaluationInterval = DEFAULT_FULL_EVALUATION_INTERVAL;
+		String optimizer = null;
+		List<HyperparameterSweep.Config> sweep = null;
+		int numFolds = 0;
+		// Distributed training
+		int coordinatorPort = -1;
+		int numWorkers = 0;
+		String workerHost = null;
+		int workerPort = TrainingCoordinator.DEFAULT_PORT;
+		int shard = 0;
+		int numShards = 1;
+		File checkpointFile = null;
+		int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+		File resumeFile = null;
+		// Cache up to a quarter of the heap by default
+		long cacheBudget = Runtime.getRuntime().maxMemory() / 4;
+		boolean cacheOffHeap = false;
 		
 		File dataFile = null;
         File audioDir = null;
+        File loadFile = null;
+        File saveFile = null;
 		
 		// Things that could one day be options
 		String[] filetypes = new String[] {"wav"};
@@ -48,6 +84,45 @@ public class HasVocals {
                 + "-m|-M int, specify max # of epochs (default " 
                 		+ maxEpochs + ") \n"
                 + "-t|-T int, specify max # of threads to use \n"
+                + "-b|-B int, train in mini-batches of this many windows "
+                		+ "(default 0, full-batch) \n"
+                + "-g|-G double, stop once the testing error reaches this "
+                		+ "target and report the time taken \n"
+                + "-a|-A train asynchronously, each thread updating the "
+                		+ "shared weights every max(batch, 1) windows \n"
+                + "-c|-C int, cache up to this many MB of training data in "
+                		+ "memory, 0 to always stream (default " 
+                		+ (cacheBudget >> 20) + ") \n"
+                + "-u|-U keep cached data off-heap \n"
+                + "-o|-O name[:rate], update weights with sgd, momentum, "
+                		+ "rmsprop or adam (default sgd) \n"
+                + "-p|-P test each epoch in the background while the next "
+                		+ "one trains, keeping the best epoch's weights \n"
+                + "-v|-V int, estimate each epoch's error from a stratified "
+                		+ "sample of this many testing windows \n"
+                + "-k|-K int, with -v, evaluate the whole testing set every "
+                		+ "this many epochs (default " 
+                		+ DEFAULT_FULL_EVALUATION_INTERVAL + ") \n"
+                + "-w|-W grid, train every combination of hidden sizes, "
+                		+ "optimizers and decays in one pass over the data "
+                		+ "and rank them, e.g. 30x10,60/sgd,adam/0.01,0.1 \n"
+                + "-x|-X int, cross-validate over this many folds, "
+                		+ "training them concurrently, instead of one "
+                		+ "75/25 split \n"
+                + "-l|-L path/to/model, load a saved network to train on \n"
+                + "-s|-S path/to/model, save the trained network \n"
+                + "--coordinator port:workers, coordinate distributed "
+                		+ "training by this many workers, which must match "
+                		+ "the n of every worker's --shard i/n \n"
+                + "--worker host:port, train a shard of the data for a "
+                		+ "coordinator \n"
+                + "--shard i/n, the worker's shard of the files, from 0, "
+                		+ "out of the coordinator's n workers (default 0/1) \n"
+                + "--checkpoint path[:epochs], checkpoint the training "
+                		+ "state every so many epochs (default " 
+                		+ DEFAULT_CHECKPOINT_INTERVAL + ") \n"
+                + "--resume path/to/checkpoint, carry on training from a "
+                		+ "checkpoint, on the same files \n"
                 + "-h display this help message";
 		
 		if(args.length < MAIN_REQUIRED_ARGS) {
@@ -63,7 +138,43 @@ public class HasVocals {
             // Get options
             for(int i=0; i < args.length - MAIN_REQUIRED_ARGS; i++) {
             	try {    
-            		if(args[i].startsWith("-") && args[i].length() == 2) {
+            		if(args[i].equals("--coordinator")) {
+            			String[] parts = 
+            					getOptionParameter(args, i).split(":");
+            			coordinatorPort = Integer.parseInt(parts[0]);
+            			numWorkers = Integer.parseInt(parts[1]);
+            			i++;
+            		} else if(args[i].equals("--worker")) {
+            			String param = getOptionParameter(args, i);
+            			int colon = param.lastIndexOf(':');
+            			workerHost = (colon < 0) 
+            					? param : param.substring(0, colon);
+            			if(colon >= 0)
+            				workerPort = 
+            					Integer.parseInt(param.substring(colon + 1));
+            			i++;
+            		} else if(args[i].equals("--shard")) {
+            			String[] parts = 
+            					getOptionParameter(args, i).split("/");
+            			shard = Integer.parseInt(parts[0]);
+            			numShards = Integer.parseInt(parts[1]);
+            			if(shard < 0 || shard >= numShards)
+            				throw new IllegalArgumentException(
+            						"shard must be in [0, n).");
+            			i++;
+            		} else if(args[i].equals("--checkpoint")) {
+            			String param = getOptionParameter(args, i);
+            			int colon = param.lastIndexOf(':');
+            			checkpointFile = new File((colon < 0) 
+            					? param : param.substring(0, colon));
+            			if(colon >= 0)
+            				checkpointInterval = 
+            					Integer.parseInt(param.substring(colon + 1));
+            			i++;
+            		} else if(args[i].equals("--resume")) {
+            			resumeFile = new File(getOptionParameter(args, i));
+            			i++;
+            		} else if(args[i].startsWith("-") && args[i].length() == 2) {
 	                    // It is a valid option
 	                    char option = args[i].charAt(1);
 	                    switch(option) {
@@ -115,6 +226,90 @@ public class HasVocals {
 	                    	i++;
 	                        break;
 	                        
+	                    case 'b' :
+	                    case 'B' :
+	                    	batchSize = 
+	                    		Integer.parseInt(getOptionParameter(args, i));
+	                    	i++;
+	                        break;
+	                        
+	                    case 'g' :
+	                    case 'G' :
+	                    	targetError = Double.parseDouble( 
+	                    					getOptionParameter(args, i) );
+	                    	i++;
+	                        break;
+	                        
+	                    case 'a' :
+	                    case 'A' :
+	                    	asynchronous = true;
+	                    	break;
+	                    	
+	                    case 'c' :
+	                    case 'C' :
+	                    	cacheBudget = Long.parseLong(
+	                    			getOptionParameter(args, i)) << 20;
+	                    	i++;
+	                        break;
+	                        
+	                    case 'u' :
+	                    case 'U' :
+	                    	cacheOffHeap = true;
+	                    	break;
+	                    	
+	                    case 'o' :
+	                    case 'O' :
+	                    	optimizer = getOptionParameter(args, i);
+	                    	// Fail on a bad name now
+	                    	AbstractOptimizer.forName(optimizer);
+	                    	i++;
+	                        break;
+	                        
+	                    case 'p' :
+	                    case 'P' :
+	                    	pipelined = true;
+	                    	break;
+	                    	
+	                    case 'v' :
+	                    case 'V' :
+	                    	validationSize = 
+	                    		Integer.parseInt(getOptionParameter(args, i));
+	                    	i++;
+	                        break;
+	                        
+	                    case 'k' :
+	                    case 'K' :
+	                    	fullEvaluationInterval = 
+	                    		Integer.parseInt(getOptionParameter(args, i));
+	                    	i++;
+	                        break;
+	                        
+	                    case 'w' :
+	                    case 'W' :
+	                    	sweep = HyperparameterSweep.parseGrid(
+	                    			getOptionParameter(args, i));
+	                    	i++;
+	                        break;
+	                        
+	                    case 'x' :
+	                    case 'X' :
+	                    	numFolds = 
+	                    		Integer.parseInt(getOptionParameter(args, i));
+	                    	i++;
+	                        break;
+	                        
+	                    case 'l' :
+	                    case 'L' :
+	                    	loadFile = new File(getOptionParameter(args, i));
+	                    	i++;
+	                        break;
+	                        
+	                    case 's' :
+	                    case 'S' :
+	                    	saveFile = new File(getOptionParameter(args, i));
+	                    	i++;
+	                        break;
+	                        
 	                    default :
 	                    	System.out.println("Invalid flag " + args[i]
 	                                			+ "Use option -h for help.");
@@ -126,7 +321,12 @@ public class HasVocals {
 	                            + "Use option -h for help.");
 	                   System.exit(1);
 	                }
-	            } catch (NumberFormatException e) {
+	            } catch (ArrayIndexOutOfBoundsException e) {
+	            	System.out.println(args[i] + 
+	            			" looks like a malformed option.\n"
+	                        + "Use option -h for help.");
+	               System.exit(1);
+	            } catch (IllegalArgumentException e) {
 	            	System.out.println(args[i] + 
 	            			" looks like a malformed option.\n"
 	                        + "Use option -h for help.");
@@ -137,8 +337,61 @@ public class HasVocals {
 
 		// Now, getting down to business.
 		HasVocals hasVocals = new HasVocals(System.out);
-		hasVocals.newNeuralNetwork();
-		if(dataFile != null) { 
+		hasVocals.setBatchSize(batchSize);
+		hasVocals.setTargetError(targetError);
+		hasVocals.setAsynchronous(asynchronous);
+		hasVocals.setPipelined(pipelined);
+		hasVocals.setSampledValidation(validationSize, 
+									   fullEvaluationInterval);
+		if(optimizer != null)
+			hasVocals.setOptimizer(optimizer);
+		hasVocals.setSweep(sweep);
+		hasVocals.setCrossValidation(numFolds);
+		if(cacheBudget > 0)
+			hasVocals.setDatasetCache(new DatasetCache(cacheBudget, 
+													   cacheOffHeap));
+		if(loadFile != null) {
+			try {
+				hasVocals.loadNeuralNetwork(loadFile);
+			} catch(IOException e) {
+				System.out.println(e.getMessage());
+				System.exit(1);
+			}
+		} else {
+			hasVocals.newNeuralNetwork();
+		}
+		// Keep checkpointing where we resumed from, unless told otherwise
+		if(checkpointFile == null)
+			checkpointFile = resumeFile;
+		if(checkpointFile != null)
+			hasVocals.setCheckpoint(checkpointFile, checkpointInterval);
+		if(resumeFile != null) {
+			try {
+				hasVocals.resume(resumeFile);
+			} catch(IOException e) {
+				System.out.println(e.getMessage());
+				System.exit(1);
+			}
+		}
+		if(coordinatorPort >= 0) {
+			try {
+				hasVocals.coordinate(coordinatorPort, numWorkers, 
+									 minDeltaError, maxEpochs);
+				if(saveFile != null)
+					hasVocals.saveNeuralNetwork(saveFile);
+			} catch(IOException e) {
+				System.out.println(e.getMessage());
+				System.exit(1);
+			}
+		} else if(workerHost != null) {
+			try {
+				hasVocals.work(temp, recurse, n, workerHost, workerPort, 
+							   shard, numShards, maxThreads);
+			} catch(IOException e) {
+				System.out.println(e.getMessage());
+				System.exit(1);
+			}
+		} else if(dataFile != null) { 
 			try {
 				hasVocals.generateTrainingData(dataFile, 
 							    audioDir, 
@@ -153,8 +406,15 @@ public class HasVocals {
 			}
 		} else {
 			hasVocals.train(temp, recurse, n, minDeltaError, maxEpochs, maxThreads);
+			if(saveFile != null) {
+				try {
+					hasVocals.saveNeuralNetwork(saveFile);
+				} catch(IOException e) {
+					System.out.println(e.getMessage());
+					System.exit(1);
+				}
+			}
 		}
-		//hasVocals.saveNeuralNetwork(annOutputFile);
 	}
 	
 	/**
@@ -214,6 +474,21 @@ public class HasVocals {
 	private File mTemp;
 	private HashMap<String, Double> mLabelsByFilename;
 	private ArrayList<LabeledDataContainer> mTrainingContainers;
+	private int mBatchSize = 0;
+	private double mTargetError = Double.NEGATIVE_INFINITY;
+	private boolean mAsynchronous = false;
+	private boolean mPipelined = false;
+	// Each trainer gets its own optimizer from this, as they keep state
+	private String mOptimizer;
+	private int mValidationSize = 0;
+	private int mFullEvaluationInterval = DEFAULT_FULL_EVALUATION_INTERVAL;
+	private File mCheckpointFile;
+	private int mCheckpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+	private TrainingCheckpoint mResume;
+	private List<File> mResumeFiles;
+	private DatasetCache mDatasetCache;
+	private List<HyperparameterSweep.Config> mSweep;
+	private int mNumFolds = 0;
 	
 	/**
 	 * Constructs a HasVocals.
@@ -228,20 +503,139 @@ public class HasVocals {
 	 * Initializes a new neural network.
 	 */
 	public void newNeuralNetwork() {
+		mNeuralNetwork = newNeuralNetwork(DEFAULT_HIDDEN_SIZES);
+	}
+	
+	/**
+	 * Constructs a network with logistic hidden layers of the given sizes
+	 * and a single soft-max output.
+	 * @param hiddenSizes
+	 * @return
+	 */
+	public static Mlp newNeuralNetwork(int[] hiddenSizes) {
 		SoftMax softMax = new SoftMax(1);
 		StandardLogistic logistic = new StandardLogistic(1);
-		mNeuralNetwork = new Mlp();
+		Mlp mlp = new Mlp();
 		
-		// Construct layer
-		Mlp.Layer hidden1 = 
-				new Mlp.Layer(30, logistic);
-		Mlp.Layer hidden2 = 
-				new Mlp.Layer(10, logistic);
-		Mlp.Layer output = 
-				new Mlp.Layer(1, softMax);
-		
-		// Link them up
-		mNeuralNetwork.append(hidden1).append(hidden2).append(output);
+		// Construct and link up the layers
+		for(int size : hiddenSizes)
+			mlp.append(new Mlp.Layer(size, logistic));
+		mlp.append(new Mlp.Layer(1, softMax));
+		return mlp;
+	}
+	
+	/**
+	 * Sets the number of windows per weight update, 0 for full-batch.
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		mBatchSize = batchSize;
+	}
+	
+	/**
+	 * Sets the testing error at which training stops.
+	 * @param targetError
+	 */
+	public void setTargetError(double targetError) {
+		mTargetError = targetError;
+	}
+	
+	/**
+	 * Sets whether to train asynchronously.
+	 * @param asynchronous
+	 */
+	public void setAsynchronous(boolean asynchronous) {
+		mAsynchronous = asynchronous;
+	}
+	
+	/**
+	 * Sets whether to test each epoch while the next one trains.
+	 * @param pipelined
+	 */
+	public void setPipelined(boolean pipelined) {
+		mPipelined = pipelined;
+	}
+	
+	/**
+	 * Sets the rule used to update the weights.
+	 * @param optimizer - see AbstractOptimizer.forName(), or null for the 
+	 * 			trainer's default
+	 */
+	public void setOptimizer(String optimizer) {
+		mOptimizer = optimizer;
+	}
+	
+	/**
+	 * Sets sampled validation (see MlpTrainer.setSampledValidation()).
+	 * @param sampleSize - the number of testing windows to sample, 0 for off
+	 * @param fullEvaluationInterval
+	 */
+	public void setSampledValidation(int sampleSize, 
+									 int fullEvaluationInterval) 
+	{
+		mValidationSize = sampleSize;
+		mFullEvaluationInterval = fullEvaluationInterval;
+	}
+	
+	/**
+	 * Makes train() sweep a set of configurations instead of training the
+	 * neural network, and keep the best one.
+	 * @param configs - or null to train as usual
+	 */
+	public void setSweep(List<HyperparameterSweep.Config> configs) {
+		mSweep = configs;
+	}
+	
+	/**
+	 * Makes train() cross-validate over all the training data instead of
+	 * training on one split of it.
+	 * @param numFolds - k, or 0 to train as usual
+	 */
+	public void setCrossValidation(int numFolds) {
+		mNumFolds = numFolds;
+	}
+	
+	/**
+	 * Sets where and how often to checkpoint training. The list of files
+	 * trained on is written next to the checkpoint, for resume().
+	 * @param file - or null for no checkpoints
+	 * @param interval - the number of epochs between checkpoints
+	 */
+	public void setCheckpoint(File file, int interval) {
+		mCheckpointFile = file;
+		mCheckpointInterval = interval;
+	}
+	
+	/**
+	 * Makes the next train() carry on from a checkpoint, on the files the
+	 * checkpointed session was training on.
+	 * @param file
+	 * @throws IOException if the checkpoint or its file list can't be read
+	 */
+	public void resume(File file) throws IOException {
+		mResume = TrainingCheckpoint.read(file);
+		mResumeFiles = new ArrayList<File>();
+		BufferedReader reader = new BufferedReader(new FileReader(
+				new File(file.getPath() + CHECKPOINT_FILES_SUFFIX)));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.length() > 0)
+					mResumeFiles.add(new File(line));
+			}
+		} finally {
+			reader.close();
+		}
+		println("Loaded checkpoint of epoch " + mResume.getEpoch() 
+				+ " from " + file.getPath());
+	}
+	
+	/**
+	 * Sets a cache that holds training data in memory across epochs.
+	 * @param cache - or null to always stream
+	 */
+	public void setDatasetCache(DatasetCache cache) {
+		mDatasetCache = cache;
 	}
 	
 	/**
@@ -301,18 +695,29 @@ public class HasVocals {
 					  int maxEpochs, 
 					  int maxThreads) 
 	{
+		List<File> fileList;
+		if(mResumeFiles != null) {
+			// The same files, in the same order, split the same way
+			fileList = mResumeFiles;
+			println("Resuming on " + fileList.size() + " files.");
+		} else {
+			fileList = findTrainingFiles(trainingDir, recurse);
+			n = Math.min(n, fileList.size());
+			println("Randomly selecting, at most, " 
+							+ n + " with which to train.");
+			Collections.shuffle(fileList);
+			fileList.subList(n, fileList.size()).clear();
+		}
+		if(mCheckpointFile != null) {
+			try {
+				writeFileList(fileList, new File(mCheckpointFile.getPath() 
+						+ CHECKPOINT_FILES_SUFFIX));
+			} catch(IOException e) {
+				println("Couldn't write the checkpoint's file list: " 
+						+ e.getMessage());
+			}
+		}
 		mTrainingContainers = new ArrayList<LabeledDataContainer>();
-		String[] filetypes = new String[] {"mfc"};
-		FileFilter filter =  new TrainingFileFilter(filetypes, null);
-		List<File> fileList = new ArrayList<File>();
-		processDir(trainingDir, fileList, filter, recurse);
-		println("Found " + fileList.size() + " valid files");
-		
-		n = Math.min(n, fileList.size());
-		println("Randomly selecting, at most, " 
-						+ n + " with which to train.");
-		Collections.shuffle(fileList);
-		fileList.subList(n, fileList.size()).clear();
 		for(File file : fileList) {
 			mTrainingContainers.add(new LabeledDataContainer(file));
 		}
@@ -320,13 +725,139 @@ public class HasVocals {
 	}
 	
 	/**
-	 * Private training function. Subsets testing data and hands it off to a
-	 * MlpTrainer.
+	 * Coordinates distributed training of the neural network by workers
+	 * started with work().
+	 * @param port - the port workers connect to
+	 * @param numWorkers - the number of workers to wait for, which must be
+	 * 			the numShards every worker was started with
 	 * @param minDeltaError
 	 * @param maxEpochs
+	 * @throws IOException
+	 */
+	public void coordinate(int port, 
+						   int numWorkers, 
+						   double minDeltaError, 
+						   int maxEpochs) throws IOException 
+	{
+		TrainingCoordinator coordinator = 
+				new TrainingCoordinator(mNeuralNetwork, mOut);
+		coordinator.setTargetError(mTargetError);
+		if(mOptimizer != null)
+			coordinator.setOptimizer(AbstractOptimizer.forName(mOptimizer));
+		coordinator.trainMlp(port, numWorkers, minDeltaError, maxEpochs);
+	}
+	
+	/**
+	 * Trains one shard of the mfc files in a directory for a coordinator.
+	 * Every worker selects the same n files, so given distinct shards of 
+	 * the same directory, no two workers share a file. Nothing checks that
+	 * numShards matches the coordinator's number of workers: start exactly 
+	 * numShards workers, shards 0 to numShards - 1, or some files will be 
+	 * left out or trained twice.
+	 * @param trainingDir
+	 * @param recurse
+	 * @param n - the max number of files across all shards
+	 * @param host - the coordinator's host
+	 * @param port - the coordinator's port
+	 * @param shard - this worker's shard, in [0, numShards)
+	 * @param numShards
 	 * @param maxThreads
+	 * @throws IOException
 	 */
-	private void train(double minDeltaError, int maxEpochs, int maxThreads) {
+	public void work(File trainingDir, 
+					 boolean recurse, 
+					 int n, 
+					 String host, 
+					 int port, 
+					 int shard, 
+					 int numShards, 
+					 int maxThreads) throws IOException 
+	{
+		List<File> fileList = findTrainingFiles(trainingDir, recurse);
+		List<File> shardFiles = selectShard(fileList, n, shard, numShards);
+		mTrainingContainers = new ArrayList<LabeledDataContainer>();
+		for(File file : shardFiles) {
+			mTrainingContainers.add(new LabeledDataContainer(file));
+		}
+		println("Shard " + shard + "/" + numShards + ": " 
+				+ mTrainingContainers.size() + " of " 
+				+ Math.min(n, fileList.size()) + " files.");
+		
+		LabeledDataContainer[][] sets = splitTrainingContainers();
+		MlpTrainer trainer = new MlpTrainer(mNeuralNetwork, mOut);
+		trainer.setDatasetCache(mDatasetCache);
+		TrainingWorker worker = 
+				new TrainingWorker(mNeuralNetwork, trainer, mOut);
+		worker.run(host, port, sets[0], sets[1], maxThreads);
+	}
+	
+	/**
+	 * Returns one shard of the first n files of a list, after sorting and
+	 * shuffling it the same way in every worker. Shards 0 to numShards - 1 
+	 * cover the n files exactly once between them, but only if every 
+	 * worker was given the same numShards.
+	 * @param fileList
+	 * @param n - the max number of files across all shards
+	 * @param shard - in [0, numShards)
+	 * @param numShards
+	 * @return
+	 */
+	static List<File> selectShard(List<File> fileList, 
+								  int n, 
+								  int shard, 
+								  int numShards) 
+	{
+		List<File> shuffled = new ArrayList<File>(fileList);
+		Collections.sort(shuffled);
+		Collections.shuffle(shuffled, new Random(SHARD_SEED));
+		n = Math.min(n, shuffled.size());
+		List<File> shardFiles = new ArrayList<File>();
+		for(int i=shard; i < n; i += numShards) {
+			shardFiles.add(shuffled.get(i));
+		}
+		return shardFiles;
+	}
+	
+	/**
+	 * Writes a list of files, one path per line.
+	 * @param fileList
+	 * @param file
+	 * @throws IOException
+	 */
+	private static void writeFileList(List<File> fileList, File file) 
+			throws IOException 
+	{
+		PrintWriter writer = new PrintWriter(file);
+		try {
+			for(File listed : fileList)
+				writer.println(listed.getPath());
+		} finally {
+			writer.close();
+		}
+		if(writer.checkError())
+			throw new IOException("Couldn't write " + file.getPath());
+	}
+	
+	/**
+	 * Lists the mfc files in a directory.
+	 * @param trainingDir
+	 * @param recurse
+	 * @return
+	 */
+	private List<File> findTrainingFiles(File trainingDir, boolean recurse) {
+		String[] filetypes = new String[] {"mfc"};
+		FileFilter filter =  new TrainingFileFilter(filetypes, null);
+		List<File> fileList = new ArrayList<File>();
+		processDir(trainingDir, fileList, filter, recurse);
+		println("Found " + fileList.size() + " valid files");
+		return fileList;
+	}
+	
+	/**
+	 * Splits mTrainingContainers into training and testing sets.
+	 * @return {trainingSet, testingSet}
+	 */
+	private LabeledDataContainer[][] splitTrainingContainers() {
 		int trainingSize = (int) (.75 * mTrainingContainers.size());
 		int testingSize = mTrainingContainers.size() - trainingSize;
 		
@@ -342,9 +873,39 @@ public class HasVocals {
 		mTrainingContainers
 			.subList(trainingSize, mTrainingContainers.size())
 				.toArray(testingSet);
+		return new LabeledDataContainer[][] {trainingSet, testingSet};
+	}
+	
+	/**
+	 * Private training function. Subsets testing data and hands it off to a
+	 * MlpTrainer.
+	 * @param minDeltaError
+	 * @param maxEpochs
+	 * @param maxThreads
+	 */
+	private void train(double minDeltaError, int maxEpochs, int maxThreads) {
+		if(mNumFolds > 0) {
+			crossValidate(minDeltaError, maxEpochs, maxThreads);
+			return;
+		}
+		LabeledDataContainer[][] sets = splitTrainingContainers();
+		LabeledDataContainer[] trainingSet = sets[0];
+		LabeledDataContainer[] testingSet = sets[1];
+		if(mSweep != null) {
+			sweep(trainingSet, testingSet, minDeltaError, maxEpochs, 
+				  maxThreads);
+			return;
+		}
 		
-		MlpTrainer trainer = 
-				new MlpTrainer(mNeuralNetwork, mOut);
+		MlpTrainer trainer = newTrainer(mNeuralNetwork, mOut);
+		trainer.setDatasetCache(mDatasetCache);
+		if(mCheckpointFile != null)
+			trainer.setCheckpoint(mCheckpointFile, mCheckpointInterval);
+		if(mResume != null) {
+			trainer.resume(mResume);
+			mResume = null;
+			mResumeFiles = null;
+		}
 		trainer.trainMlp(trainingSet, 
 						     testingSet, 
 						     minDeltaError, 
@@ -352,6 +913,91 @@ public class HasVocals {
 						     maxThreads);
 	}
 	
+	/**
+	 * Returns a trainer with the session's training settings.
+	 * @param mlp
+	 * @param out
+	 * @return
+	 */
+	private MlpTrainer newTrainer(Mlp mlp, PrintStream out) {
+		MlpTrainer trainer = new MlpTrainer(mlp, out);
+		trainer.setBatchSize(mBatchSize);
+		trainer.setTargetError(mTargetError);
+		trainer.setAsynchronous(mAsynchronous);
+		trainer.setPipelined(mPipelined);
+		trainer.setSampledValidation(mValidationSize, 
+									 mFullEvaluationInterval);
+		if(mOptimizer != null)
+			trainer.setOptimizer(AbstractOptimizer.forName(mOptimizer));
+		return trainer;
+	}
+	
+	/**
+	 * Cross-validates over every training container.
+	 * @param minDeltaError
+	 * @param maxEpochs
+	 * @param maxThreads
+	 */
+	private void crossValidate(double minDeltaError, 
+							   int maxEpochs, 
+							   int maxThreads) 
+	{
+		IDataContainer[] containers = 
+				new IDataContainer[mTrainingContainers.size()];
+		mTrainingContainers.toArray(containers);
+		CrossValidation validation = new CrossValidation(mNeuralNetwork, 
+				new CrossValidation.ITrainerFactory() {
+					@Override
+					public MlpTrainer newTrainer(Mlp mlp, PrintStream out) {
+						return HasVocals.this.newTrainer(mlp, out);
+					}
+				}, mOut);
+		validation.setDatasetCache(mDatasetCache);
+		try {
+			validation.run(containers, mNumFolds, minDeltaError, maxEpochs, 
+						   maxThreads);
+		} catch(InterruptedException e) {
+			e.printStackTrace();
+		} catch(ExecutionException e) {
+			e.printStackTrace();
+		} catch(IDataContainer.DataUnavailableException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Trains every configuration of the sweep and keeps the network that
+	 * tested best.
+	 * @param trainingSet
+	 * @param testingSet
+	 * @param minDeltaError
+	 * @param maxEpochs
+	 * @param maxThreads
+	 */
+	private void sweep(LabeledDataContainer[] trainingSet,
+					   LabeledDataContainer[] testingSet,
+					   double minDeltaError, 
+					   int maxEpochs, 
+					   int maxThreads) 
+	{
+		HyperparameterSweep sweep = new HyperparameterSweep(mSweep, mOut);
+		if(mBatchSize > 0)
+			sweep.setBatchSize(mBatchSize);
+		sweep.setDatasetCache(mDatasetCache);
+		try {
+			List<HyperparameterSweep.Result> results = sweep.run(
+					trainingSet, testingSet, minDeltaError, maxEpochs, 
+					maxThreads);
+			mNeuralNetwork = results.get(0).getMlp();
+		} catch(InterruptedException e) {
+			e.printStackTrace();
+		} catch(ExecutionException e) {
+			e.printStackTrace();
+		} catch(IDataContainer.DataUnavailableException e) {
+			e.printStackTrace();
+		}
+	}
+	
 	/**
 	 * Parses the csv data file for labels.
 	 * @param file
@@ -515,17 +1161,26 @@ public class HasVocals {
 	}
 	
 	/**
-	 * Saves the neural network to a file... er... TODO
+	 * Saves the neural network to a file in the binary model format.
 	 * @param file
+	 * @throws IOException
 	 */
-	public void saveNeuralNetwork(File file) {
+	public void saveNeuralNetwork(File file) throws IOException {
+		if(mNeuralNetwork == null)
+			throw new IllegalStateException(
+					"There is no neural network to save.");
+		Mlp.writeToFile(mNeuralNetwork, file);
+		println("Saved neural network to " + file.getPath());
 	}
 	
 	/**
-	 * Loads a neural network from a file.... er... TODO
+	 * Loads a neural network from a file in the binary model format.
 	 * @param file
+	 * @throws IOException
 	 */
-	public void loadNeuralNetwork(File file) {
+	public void loadNeuralNetwork(File file) throws IOException {
+		mNeuralNetwork = Mlp.loadFromFile(file);
+		println("Loaded neural network from " + file.getPath());
 	}
 	
 	/**
@@ -0,0 +1,591 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Trains several network configurations at once from a single pass over
+ * the data per epoch. The containers are read on one thread into a block of
+ * BLOCK_ROWS windows, packed row-major and shuffled, and every model then
+ * trains on that same block in mini-batches, one task per model, while the
+ * next block is read. Testing works the same way. So however many models
+ * there are, each window is read and decoded once per epoch.
+ * Models stop training once their testing error converges. When all have,
+ * or maxEpochs pass, the models are ranked by testing error.
+ * @author Michael DuBois
+ *
+ */
+public class HyperparameterSweep {
+
+	public static final int BLOCK_ROWS = 4096;
+	public static final int DEFAULT_BATCH_SIZE = 64;
+
+	private static final int CONFIG_CELL_SIZE = 36;
+	private static final int CELL_SIZE = 12;
+
+	private List<Config> mConfigs;
+	private PrintStream mOut;
+	private int mBatchSize = DEFAULT_BATCH_SIZE;
+	private DatasetCache mCache;
+	private Random mRandom = new Random();
+
+	private Model[] mModels;
+	private int mNumInputs;
+	private int mNumOutputs;
+
+	/**
+	 * Constructs a HyperparameterSweep.
+	 * @param configs - the configurations to train
+	 * @param out
+	 */
+	public HyperparameterSweep(List<Config> configs, PrintStream out) {
+		if(configs.isEmpty())
+			throw new IllegalArgumentException("There's nothing to sweep.");
+		mConfigs = configs;
+		mOut = out;
+	}
+
+	/**
+	 * Sets the number of windows per weight update.
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		if(batchSize <= 0 || batchSize > BLOCK_ROWS)
+			throw new IllegalArgumentException(
+					"batchSize must be in (0, " + BLOCK_ROWS + "].");
+		mBatchSize = batchSize;
+	}
+
+	/**
+	 * Sets a cache that holds the data in memory across epochs.
+	 * @param cache - or null to always stream
+	 */
+	public void setDatasetCache(DatasetCache cache) {
+		mCache = cache;
+	}
+
+	/**
+	 * Trains every configuration and prints the ranked report.
+	 * @param trainingContainers
+	 * @param testingContainers
+	 * @param minDeltaError
+	 * @param maxEpochs
+	 * @param maxThreads
+	 * @return the configurations' results, best first
+	 * @throws IDataContainer.DataUnavailableException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public List<Result> run(IDataContainer[] trainingContainers,
+							IDataContainer[] testingContainers,
+							double minDeltaError,
+							int maxEpochs,
+							int maxThreads)
+			throws IDataContainer.DataUnavailableException,
+				   InterruptedException,
+				   ExecutionException
+	{
+		long startTime = System.currentTimeMillis();
+		if(mCache != null) {
+			trainingContainers = mCache.cache(trainingContainers);
+			testingContainers = mCache.cache(testingContainers);
+		}
+
+		int numThreads = Math.min(maxThreads,
+				Math.min(Runtime.getRuntime().availableProcessors(),
+						 mConfigs.size()));
+		ExecutorService executor =
+				Executors.newFixedThreadPool(Math.max(numThreads, 1));
+		mModels = null;
+		mOut.println("Sweeping " + mConfigs.size() + " configurations on "
+				+ numThreads + " threads...");
+
+		try {
+			int epoch = 0;
+			boolean done = false;
+			while(!done) {
+				long epochStart = System.currentTimeMillis();
+				List<IDataContainer> order =
+						new ArrayList<IDataContainer>(
+								Arrays.asList(trainingContainers));
+				Collections.shuffle(order, mRandom);
+				int numWindows = pass(order, true, executor);
+				if(mModels == null)
+					throw new IllegalStateException("There's no training data.");
+				pass(Arrays.asList(testingContainers), false, executor);
+
+				done = true;
+				for(Model model : mModels) {
+					if(model.mConverged)
+						continue;
+					model.finishEpoch(minDeltaError);
+					if(model.mEpochs >= maxEpochs)
+						model.mConverged = true;
+					done &= model.mConverged;
+				}
+				mOut.println("Sweep epoch " + epoch + " complete. "
+						+ numWindows + " windows, "
+						+ (System.currentTimeMillis() - epochStart) + "ms.");
+				epoch++;
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		List<Result> results = new ArrayList<Result>();
+		for(Model model : mModels)
+			results.add(model.result());
+		Collections.sort(results, new Comparator<Result>() {
+			@Override
+			public int compare(Result a, Result b) {
+				return Double.compare(a.mError, b.mError);
+			}
+		});
+		printReport(results, System.currentTimeMillis() - startTime);
+		return results;
+	}
+
+	/**
+	 * Reads containers once, block by block, and hands each block to every
+	 * model that's still training. The next block is read while the models
+	 * work on the last one.
+	 * @param containers
+	 * @param training - whether to train, or else test
+	 * @param executor
+	 * @return the number of windows read
+	 * @throws IDataContainer.DataUnavailableException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	private int pass(List<IDataContainer> containers,
+					 boolean training,
+					 ExecutorService executor)
+			throws IDataContainer.DataUnavailableException,
+				   InterruptedException,
+				   ExecutionException
+	{
+		BlockReader reader = new BlockReader(containers);
+		Block block = reader.read(new Block(), training);
+		Block next = new Block();
+		int numWindows = 0;
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		while(block.mRows > 0) {
+			numWindows += block.mRows;
+			if(mModels == null)
+				initModels();
+			futures.clear();
+			for(Model model : mModels) {
+				if(!model.mConverged)
+					futures.add(executor.submit(
+							model.newTask(block, training)));
+			}
+
+			next = reader.read(next, training);
+			for(Future<Void> future : futures)
+				future.get();
+
+			Block done = block;
+			block = next;
+			next = done;
+		}
+		return numWindows;
+	}
+
+	/**
+	 * Builds the models once the data's shape is known.
+	 */
+	private void initModels() {
+		mModels = new Model[mConfigs.size()];
+		for(int i=0; i < mModels.length; i++)
+			mModels[i] = new Model(mConfigs.get(i));
+	}
+
+	/**
+	 * Prints the results as a table, best first.
+	 * @param results
+	 * @param elapsed
+	 */
+	private void printReport(List<Result> results, long elapsed) {
+		mOut.println("Sweep complete. " + elapsed + "ms. Ranked by testing "
+				+ "error:");
+		mOut.println(MlpTrainer.paddedCell("rank", 6) + "| "
+				+ MlpTrainer.paddedCell("configuration", CONFIG_CELL_SIZE)
+				+ "| " + MlpTrainer.paddedCell("error", CELL_SIZE)
+				+ "| " + MlpTrainer.paddedCell("accuracy", CELL_SIZE)
+				+ "| " + MlpTrainer.paddedCell("epochs", CELL_SIZE)
+				+ "| " + MlpTrainer.paddedCell("train ms", CELL_SIZE)
+				+ "| " + MlpTrainer.paddedCell("samples/s", CELL_SIZE));
+		for(int i=0; i < results.size(); i++) {
+			Result result = results.get(i);
+			mOut.println(MlpTrainer.paddedCell("" + (i + 1), 6) + "| "
+				+ cell(result.mConfig.toString(), CONFIG_CELL_SIZE) + "| "
+				+ cell("" + round(result.mError), CELL_SIZE) + "| "
+				+ cell("" + round(result.mAccuracy), CELL_SIZE) + "| "
+				+ cell("" + result.mEpochs, CELL_SIZE) + "| "
+				+ cell("" + result.mTrainingMillis, CELL_SIZE) + "| "
+				+ cell("" + result.mSamplesPerSecond, CELL_SIZE));
+		}
+	}
+
+	private static String cell(String value, int size) {
+		if(value.length() >= size)
+			value = value.substring(0, size - 1);
+		return MlpTrainer.paddedCell(value, size);
+	}
+
+	private static double round(double value) {
+		return Math.round(value * 1000000D) / 1000000D;
+	}
+
+	/**
+	 * Parses a grid of configurations: hidden layer sizes, optimizers and
+	 * decays, slash-separated, each a comma-separated list, e.g.
+	 * "30x10,60x20/sgd,adam:0.005/0.01,0.1". Trailing parts may be left
+	 * out, for sgd and a decay of 0.01. Every combination is returned.
+	 * @param spec
+	 * @return
+	 */
+	public static List<Config> parseGrid(String spec) {
+		String[] dimensions = spec.split("/");
+		String[] topologies = dimensions[0].split(",");
+		String[] optimizers = (dimensions.length > 1)
+				? dimensions[1].split(",")
+				: new String[] {AbstractOptimizer.GRADIENT_ASCENT};
+		String[] decays = (dimensions.length > 2)
+				? dimensions[2].split(",")
+				: new String[] {"" + Config.DEFAULT_DECAY};
+
+		List<Config> configs = new ArrayList<Config>();
+		for(String topology : topologies) {
+			String[] sizes = topology.split("x");
+			int[] hidden = new int[sizes.length];
+			for(int i=0; i < sizes.length; i++)
+				hidden[i] = Integer.parseInt(sizes[i]);
+			for(String optimizer : optimizers) {
+				// Fail on a bad name now, not mid-sweep
+				AbstractOptimizer.forName(optimizer);
+				for(String decay : decays) {
+					configs.add(new Config(hidden, optimizer,
+										   Double.parseDouble(decay)));
+				}
+			}
+		}
+		return configs;
+	}
+
+	/**
+	 * One configuration to train.
+	 */
+	public static class Config {
+		public static final double DEFAULT_DECAY = .01;
+
+		private final int[] mHiddenSizes;
+		private final String mOptimizer;
+		private final double mDecay;
+
+		/**
+		 * Constructs a Config.
+		 * @param hiddenSizes - see HasVocals.newNeuralNetwork()
+		 * @param optimizer - see AbstractOptimizer.forName()
+		 * @param decay - the learning rate is scaled by
+		 * 			1 / (decay * epoch + 1)
+		 */
+		public Config(int[] hiddenSizes, String optimizer, double decay) {
+			if(decay < 0)
+				throw new IllegalArgumentException(
+						"decay must not be negative.");
+			mHiddenSizes = hiddenSizes.clone();
+			mOptimizer = optimizer;
+			mDecay = decay;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder topology = new StringBuilder();
+			for(int size : mHiddenSizes) {
+				if(topology.length() > 0)
+					topology.append('x');
+				topology.append(size);
+			}
+			return topology + " " + mOptimizer + " decay " + mDecay;
+		}
+	} // End Config
+
+	/**
+	 * How one configuration did.
+	 */
+	public static class Result {
+		private final Config mConfig;
+		private final Mlp mMlp;
+		// Mean square error and fraction classified right on testing data
+		private final double mError;
+		private final double mAccuracy;
+		private final int mEpochs;
+		private final long mTrainingMillis;
+		private final long mSamplesPerSecond;
+
+		Result(Config config,
+			   Mlp mlp,
+			   double error,
+			   double accuracy,
+			   int epochs,
+			   long trainingMillis,
+			   long samplesPerSecond)
+		{
+			mConfig = config;
+			mMlp = mlp;
+			mError = error;
+			mAccuracy = accuracy;
+			mEpochs = epochs;
+			mTrainingMillis = trainingMillis;
+			mSamplesPerSecond = samplesPerSecond;
+		}
+
+		public Config getConfig() {
+			return mConfig;
+		}
+
+		/**
+		 * Returns the trained network.
+		 * @return
+		 */
+		public Mlp getMlp() {
+			return mMlp;
+		}
+
+		/**
+		 * Returns the last epoch's mean square testing error.
+		 * @return
+		 */
+		public double getError() {
+			return mError;
+		}
+
+		/**
+		 * Returns the fraction of testing windows classified right.
+		 * @return
+		 */
+		public double getAccuracy() {
+			return mAccuracy;
+		}
+
+		public int getEpochs() {
+			return mEpochs;
+		}
+
+		public long getTrainingMillis() {
+			return mTrainingMillis;
+		}
+
+		public long getSamplesPerSecond() {
+			return mSamplesPerSecond;
+		}
+	} // End Result
+
+	/**
+	 * A block of windows, packed row-major.
+	 */
+	private class Block {
+		double[] mFeatures;
+		double[] mLabels;
+		int mRows;
+	} // End Block
+
+	/**
+	 * Reads a list of containers a block at a time.
+	 */
+	private class BlockReader {
+		private List<IDataContainer> mContainers;
+		private int mIdx = 0;
+		private boolean mOpen = false;
+
+		BlockReader(List<IDataContainer> containers) {
+			mContainers = containers;
+		}
+
+		/**
+		 * Fills a block with up to BLOCK_ROWS windows.
+		 * @param block
+		 * @param shuffle - whether to shuffle the block's rows
+		 * @return block, with no rows once the containers are exhausted
+		 * @throws IDataContainer.DataUnavailableException
+		 */
+		Block read(Block block, boolean shuffle)
+				throws IDataContainer.DataUnavailableException
+		{
+			block.mRows = 0;
+			while(block.mRows < BLOCK_ROWS && mIdx < mContainers.size()) {
+				IDataContainer container = mContainers.get(mIdx);
+				if(!mOpen) {
+					container.open();
+					mOpen = true;
+				}
+				if(!container.hasNext()) {
+					container.close();
+					mOpen = false;
+					mIdx++;
+					continue;
+				}
+				LabeledData datum = container.next();
+				double[] features = datum.getFeatures();
+				double[] labels = datum.getLabels();
+				if(mNumInputs == 0) {
+					mNumInputs = features.length;
+					mNumOutputs = labels.length;
+				}
+				if(block.mFeatures == null) {
+					block.mFeatures = new double[BLOCK_ROWS * mNumInputs];
+					block.mLabels = new double[BLOCK_ROWS * mNumOutputs];
+				}
+				System.arraycopy(features, 0, block.mFeatures,
+								 block.mRows * mNumInputs, mNumInputs);
+				System.arraycopy(labels, 0, block.mLabels,
+								 block.mRows * mNumOutputs, mNumOutputs);
+				block.mRows++;
+			}
+			if(shuffle)
+				shuffleRows(block);
+			return block;
+		}
+
+		private void shuffleRows(Block block) {
+			for(int i=block.mRows - 1; i > 0; i--) {
+				int j = mRandom.nextInt(i + 1);
+				swapRows(block.mFeatures, mNumInputs, i, j);
+				swapRows(block.mLabels, mNumOutputs, i, j);
+			}
+		}
+
+		private void swapRows(double[] rows, int width, int a, int b) {
+			for(int k=0; k < width; k++) {
+				double tmp = rows[a * width + k];
+				rows[a * width + k] = rows[b * width + k];
+				rows[b * width + k] = tmp;
+			}
+		}
+	} // End BlockReader
+
+	/**
+	 * One configuration's network and its training state. Only one task
+	 * works on a model at a time.
+	 */
+	private class Model {
+		private Config mConfig;
+		private Mlp mMlp;
+		private IOptimizer mOptimizer;
+		private BatchGradient mGradient;
+		private Mlp.Workspace mWorkspace;
+		private double[] mRow;
+
+		int mEpochs = 0;
+		boolean mConverged = false;
+		private double mLastError = Double.NaN;
+		private double mAccuracy;
+		private long mTrainingNanos;
+		private long mTrainingSamples;
+		// This epoch's testing sums
+		private double mSumSqrResiduals;
+		private long mQuantity;
+		private long mCorrect;
+		private long mTested;
+
+		Model(Config config) {
+			mConfig = config;
+			mMlp = HasVocals.newNeuralNetwork(config.mHiddenSizes);
+			mMlp.evaluate(new double[mNumInputs]);
+			mOptimizer = AbstractOptimizer.forName(config.mOptimizer);
+			mOptimizer.init(mMlp);
+			mGradient = new BatchGradient(mMlp, mBatchSize);
+			mWorkspace = mMlp.newWorkspace();
+			mRow = new double[mNumInputs];
+		}
+
+		Callable<Void> newTask(final Block block, final boolean training) {
+			return new Callable<Void>() {
+				@Override
+				public Void call() {
+					if(training)
+						train(block);
+					else
+						test(block);
+					return null;
+				}
+			};
+		}
+
+		/**
+		 * Trains on a block in mini-batches.
+		 * @param block
+		 */
+		private void train(Block block) {
+			long start = System.nanoTime();
+			double rateScale = 1D / (mConfig.mDecay * mEpochs + 1D);
+			for(int r=0; r < block.mRows; r += mBatchSize) {
+				int rows = Math.min(mBatchSize, block.mRows - r);
+				mGradient.accumulate(block.mFeatures, r * mNumInputs,
+									 block.mLabels, r * mNumOutputs, rows);
+				MlpTrainer.applyDeltaWeights(mMlp, mOptimizer,
+											 1D / rows, rateScale);
+			}
+			mTrainingSamples += block.mRows;
+			mTrainingNanos += System.nanoTime() - start;
+		}
+
+		/**
+		 * Adds a block to this epoch's testing sums.
+		 * @param block
+		 */
+		private void test(Block block) {
+			for(int r=0; r < block.mRows; r++) {
+				System.arraycopy(block.mFeatures, r * mNumInputs,
+								 mRow, 0, mNumInputs);
+				double[] outputs = mMlp.evaluate(mRow, mWorkspace);
+				for(int j=0; j < mNumOutputs; j++) {
+					double target = block.mLabels[r * mNumOutputs + j];
+					double diff = target - outputs[j];
+					mSumSqrResiduals += diff * diff;
+				}
+				mQuantity += mNumOutputs;
+				// Classified right if the first output's on the right side
+				double target = block.mLabels[r * mNumOutputs];
+				if((outputs[0] >= .5) == (target >= .5))
+					mCorrect++;
+				mTested++;
+			}
+		}
+
+		/**
+		 * Records the epoch's testing error and decides convergence.
+		 * @param minDeltaError
+		 */
+		void finishEpoch(double minDeltaError) {
+			double error = mSumSqrResiduals / mQuantity;
+			double deltaError = error - mLastError;
+			mLastError = error;
+			mAccuracy = (double) mCorrect / mTested;
+			mSumSqrResiduals = 0;
+			mQuantity = 0;
+			mCorrect = 0;
+			mTested = 0;
+			mEpochs++;
+			if(Math.abs(deltaError) < minDeltaError)
+				mConverged = true;
+		}
+
+		Result result() {
+			long millis = mTrainingNanos / 1000000;
+			long samplesPerSecond = (mTrainingNanos == 0) ? 0
+					: Math.round(mTrainingSamples / (mTrainingNanos / 1e9));
+			return new Result(mConfig, mMlp, mLastError, mAccuracy, mEpochs,
+							  millis, samplesPerSecond);
+		}
+	} // End Model
+}
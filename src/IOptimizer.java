@@ -0,0 +1,66 @@
+/**
+ * An update rule that adjusts an mlp's weights by a gradient.
+ * Implementations keep any per-weight state in flat arrays parallel to each
+ * layer's flat weight block, so one update walks weights, gradient and state
+ * with the same index. Updates of disjoint ranges may run concurrently.
+ * @author Michael DuBois
+ *
+ */
+public interface IOptimizer {
+	
+	/**
+	 * Allocates zeroed state for an mlp's layers. Must be called once the
+	 * mlp's weights are initialized, before any update.
+	 * @param mlp
+	 */
+	public void init(Mlp mlp);
+	
+	/**
+	 * Begins one update of the whole mlp. The update() calls for each of 
+	 * its ranges follow.
+	 */
+	public void step();
+	
+	/**
+	 * Adjusts a range of one layer's weights in-place.
+	 * @param layer - the layer's index, from the head
+	 * @param weights - the layer's flat weights
+	 * @param gradient - the layer's flat averaged deltaWeights, whose 
+	 * 			direction the weights are moved in
+	 * @param start - the first index of the range
+	 * @param end - one past the last index of the range
+	 * @param rateScale - multiplies the optimizer's learning rate, e.g. 
+	 * 			for decay
+	 */
+	public void update(int layer, 
+					   double[] weights, 
+					   double[] gradient, 
+					   int start, 
+					   int end, 
+					   double rateScale);
+	
+	/**
+	 * Returns a copy of everything the optimizer has learned, as flat 
+	 * vectors, e.g. for a checkpoint.
+	 * @return
+	 */
+	public double[][] getState();
+	
+	/**
+	 * Restores state from getState(), after init() with the same mlp.
+	 * @param state
+	 */
+	public void setState(double[][] state);
+	
+	/**
+	 * Returns the base learning rate.
+	 * @return
+	 */
+	public double getLearningRate();
+	
+	/**
+	 * Returns a short description, e.g. for logs.
+	 * @return
+	 */
+	public String getName();
+}
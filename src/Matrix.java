@@ -0,0 +1,284 @@
+/**
+ * Matrices! Kernels for dense row-major matrices stored in flat arrays.
+ * Every matrix argument is given as an array, the offset of its first
+ * element and its leading dimension (the distance between the starts of
+ * consecutive rows), so kernels can work on blocks inside larger arrays.
+ * Loops are ordered so the innermost loop always walks contiguous memory,
+ * and the matrix-matrix kernels are blocked so their working set stays in
+ * cache.
+ * @author Michael DuBois
+ *
+ */
+public class Matrix {
+
+	// Block sizes for the cache-blocked kernels. A block of BLOCK_ROWS rows
+	// by BLOCK_COLS doubles is 64KB, which sits comfortably in L2.
+	private static final int BLOCK_ROWS = 64;
+	private static final int BLOCK_COLS = 128;
+
+	/**
+	 * Matrix-vector product y = alpha*A*x + beta*y.
+	 * @param m - rows in A, length of y
+	 * @param n - columns in A, length of x
+	 * @param alpha
+	 * @param a - the [m x n] matrix A
+	 * @param aOffset
+	 * @param lda - leading dimension of A
+	 * @param x
+	 * @param xOffset
+	 * @param beta - 0 to overwrite y
+	 * @param y
+	 * @param yOffset
+	 */
+	public static void gemv(int m, int n, double alpha,
+							double[] a, int aOffset, int lda,
+							double[] x, int xOffset,
+							double beta,
+							double[] y, int yOffset)
+	{
+		for(int i=0; i < m; i++) {
+			double dot = Vector.dot(a, aOffset + i * lda, x, xOffset, n);
+			double prev = (beta == 0) ? 0 : beta * y[yOffset + i];
+			y[yOffset + i] = alpha * dot + prev;
+		}
+	}
+
+	/**
+	 * Transposed matrix-vector product y = alpha*A^T*x + beta*y.
+	 * Walks A row by row rather than down its columns.
+	 * @param m - rows in A, length of x
+	 * @param n - columns in A, length of y
+	 * @param alpha
+	 * @param a - the [m x n] matrix A
+	 * @param aOffset
+	 * @param lda - leading dimension of A
+	 * @param x
+	 * @param xOffset
+	 * @param beta - 0 to overwrite y
+	 * @param y
+	 * @param yOffset
+	 */
+	public static void gemvT(int m, int n, double alpha,
+							 double[] a, int aOffset, int lda,
+							 double[] x, int xOffset,
+							 double beta,
+							 double[] y, int yOffset)
+	{
+		scale(1, n, beta, y, yOffset, n);
+		for(int i=0; i < m; i++) {
+			Vector.axpy(alpha * x[xOffset + i],
+						a, aOffset + i * lda,
+						y, yOffset,
+						n);
+		}
+	}
+
+	/**
+	 * Rank-1 update A += alpha*x*y^T.
+	 * @param m - rows in A, length of x
+	 * @param n - columns in A, length of y
+	 * @param alpha
+	 * @param x
+	 * @param xOffset
+	 * @param y
+	 * @param yOffset
+	 * @param a - the [m x n] matrix A
+	 * @param aOffset
+	 * @param lda - leading dimension of A
+	 */
+	public static void ger(int m, int n, double alpha,
+						   double[] x, int xOffset,
+						   double[] y, int yOffset,
+						   double[] a, int aOffset, int lda)
+	{
+		for(int i=0; i < m; i++) {
+			double xi = alpha * x[xOffset + i];
+			if(xi != 0)
+				Vector.axpy(xi, y, yOffset, a, aOffset + i * lda, n);
+		}
+	}
+
+	/**
+	 * Matrix-matrix product C = alpha*A*B + beta*C.
+	 * @param m - rows in A and C
+	 * @param n - columns in B and C
+	 * @param k - columns in A, rows in B
+	 * @param alpha
+	 * @param a - the [m x k] matrix A
+	 * @param aOffset
+	 * @param lda
+	 * @param b - the [k x n] matrix B
+	 * @param bOffset
+	 * @param ldb
+	 * @param beta - 0 to overwrite C
+	 * @param c - the [m x n] matrix C
+	 * @param cOffset
+	 * @param ldc
+	 */
+	public static void gemm(int m, int n, int k, double alpha,
+							double[] a, int aOffset, int lda,
+							double[] b, int bOffset, int ldb,
+							double beta,
+							double[] c, int cOffset, int ldc)
+	{
+		scale(m, n, beta, c, cOffset, ldc);
+
+		// Each row of C accumulates rows of B scaled by A's entries. The
+		// block of B's rows and columns is reused by every row of A.
+		for(int p0=0; p0 < k; p0 += BLOCK_ROWS) {
+			int pEnd = Math.min(p0 + BLOCK_ROWS, k);
+			for(int j0=0; j0 < n; j0 += BLOCK_COLS) {
+				int cols = Math.min(BLOCK_COLS, n - j0);
+				for(int i=0; i < m; i++) {
+					int aRow = aOffset + i * lda;
+					int cRow = cOffset + i * ldc + j0;
+					for(int p=p0; p < pEnd; p++) {
+						double aip = alpha * a[aRow + p];
+						if(aip != 0)
+							Vector.axpy(aip,
+										b, bOffset + p * ldb + j0,
+										c, cRow,
+										cols);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Matrix-matrix product against a transposed matrix,
+	 * C = alpha*A*B^T + beta*C. This is a layer's forward pass over a
+	 * batch: inputs [rows x numInputs] times weights [numNodes x numInputs]
+	 * transposed.
+	 * @param m - rows in A and C
+	 * @param n - rows in B, columns in C
+	 * @param k - columns in A and B
+	 * @param alpha
+	 * @param a - the [m x k] matrix A
+	 * @param aOffset
+	 * @param lda
+	 * @param b - the [n x k] matrix B
+	 * @param bOffset
+	 * @param ldb
+	 * @param beta - 0 to overwrite C
+	 * @param c - the [m x n] matrix C
+	 * @param cOffset
+	 * @param ldc
+	 */
+	public static void gemmNT(int m, int n, int k, double alpha,
+							  double[] a, int aOffset, int lda,
+							  double[] b, int bOffset, int ldb,
+							  double beta,
+							  double[] c, int cOffset, int ldc)
+	{
+		// Rows of A are processed in blocks that stay in cache while every
+		// row of B streams past, and each row of B is applied to four
+		// rows of A at a time.
+		for(int i0=0; i0 < m; i0 += BLOCK_ROWS) {
+			int iEnd = Math.min(i0 + BLOCK_ROWS, m);
+			for(int j=0; j < n; j++) {
+				int bRow = bOffset + j * ldb;
+				int i = i0;
+				for(; i + 3 < iEnd; i += 4) {
+					int a0 = aOffset + i * lda;
+					int a1 = a0 + lda;
+					int a2 = a1 + lda;
+					int a3 = a2 + lda;
+					double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+					for(int p=0; p < k; p++) {
+						double bp = b[bRow + p];
+						s0 += bp * a[a0 + p];
+						s1 += bp * a[a1 + p];
+						s2 += bp * a[a2 + p];
+						s3 += bp * a[a3 + p];
+					}
+					int c0 = cOffset + i * ldc + j;
+					c[c0] = alpha * s0 + scaled(beta, c[c0]);
+					c[c0 + ldc] = alpha * s1 + scaled(beta, c[c0 + ldc]);
+					c[c0 + 2 * ldc] =
+							alpha * s2 + scaled(beta, c[c0 + 2 * ldc]);
+					c[c0 + 3 * ldc] =
+							alpha * s3 + scaled(beta, c[c0 + 3 * ldc]);
+				}
+				for(; i < iEnd; i++) {
+					int cij = cOffset + i * ldc + j;
+					double dot = Vector.dot(a, aOffset + i * lda, b, bRow, k);
+					c[cij] = alpha * dot + scaled(beta, c[cij]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rank-k update C = alpha*A^T*B + beta*C, the sum of k outer products
+	 * of A's rows with B's rows. This accumulates a layer's gradient over a
+	 * batch: blames [rows x numNodes] transposed times inputs
+	 * [rows x numInputs].
+	 * @param m - columns in A, rows in C
+	 * @param n - columns in B and C
+	 * @param k - rows in A and B
+	 * @param alpha
+	 * @param a - the [k x m] matrix A
+	 * @param aOffset
+	 * @param lda
+	 * @param b - the [k x n] matrix B
+	 * @param bOffset
+	 * @param ldb
+	 * @param beta - 0 to overwrite C, 1 to accumulate into it
+	 * @param c - the [m x n] matrix C
+	 * @param cOffset
+	 * @param ldc
+	 */
+	public static void gemmTN(int m, int n, int k, double alpha,
+							  double[] a, int aOffset, int lda,
+							  double[] b, int bOffset, int ldb,
+							  double beta,
+							  double[] c, int cOffset, int ldc)
+	{
+		scale(m, n, beta, c, cOffset, ldc);
+
+		// Blocks of C's rows stay in cache while all k outer products are
+		// accumulated into them.
+		for(int i0=0; i0 < m; i0 += BLOCK_ROWS) {
+			int rows = Math.min(BLOCK_ROWS, m - i0);
+			for(int j0=0; j0 < n; j0 += BLOCK_COLS) {
+				int cols = Math.min(BLOCK_COLS, n - j0);
+				for(int p=0; p < k; p++) {
+					ger(rows, cols, alpha,
+						a, aOffset + p * lda + i0,
+						b, bOffset + p * ldb + j0,
+						c, cOffset + i0 * ldc + j0, ldc);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scales an [m x n] matrix A by alpha in place.
+	 * alpha == 0 clears A, even if it holds NaNs.
+	 * @param m
+	 * @param n
+	 * @param alpha
+	 * @param a
+	 * @param aOffset
+	 * @param lda
+	 */
+	public static void scale(int m, int n, double alpha,
+							 double[] a, int aOffset, int lda)
+	{
+		if(alpha == 1)
+			return;
+		for(int i=0; i < m; i++) {
+			int row = aOffset + i * lda;
+			for(int j=0; j < n; j++)
+				a[row + j] = (alpha == 0) ? 0 : alpha * a[row + j];
+		}
+	}
+
+	/**
+	 * Returns beta*x, treating beta == 0 as "ignore x" the way BLAS does.
+	 */
+	private static double scaled(double beta, double x) {
+		return (beta == 0) ? 0 : beta * x;
+	}
+}
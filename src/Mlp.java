@@ -22,29 +22,28 @@ public class Mlp {
 	private static final double INITIAL_WEIGHT_MAX = 0.8;
 	
 	/**
-	 * Loads an Mlp from a file. TODO
+	 * Loads an Mlp from a model file written by writeToFile().
 	 * @param file
-	 * @param t
 	 * @return
+	 * @throws IOException if the file is not a readable model
+	 * @throws FileNotFoundException
 	 */
 	public static Mlp loadFromFile(File file) 
 		throws IOException, FileNotFoundException
 	{
-		// TODO Read values from file
-		int numLayers = 0;
-		double[][][] mlpArray = new double[numLayers][][];
-		return new Mlp(mlpArray);
+		return MlpFile.read(file).toMlp();
 	}
 	
 	/**
-	 * Writes an Mlp to a file. TODO
-	 * @param mlp
+	 * Writes an Mlp to a file in the binary model format (see MlpFile).
+	 * @param mlp - an mlp whose weights have all been initialized
 	 * @param file
 	 * @throws IOException
 	 */
 	public static void writeToFile(Mlp mlp, File file) 
 		throws IOException
 	{
+		MlpFile.write(mlp.freeze(), file);
 	}
 	
 	/**
@@ -85,6 +84,26 @@ public class Mlp {
 		
 		public double[] dydk(int k, double[] outputs);
 		public double dydk(int k, double[] outputs, int i);
+		
+		/**
+		 * Applies the function to the first len elements of src in one 
+		 * linear-time pass, writing the results to dst. 
+		 * src and dst may be the same array.
+		 * @param src - the layer's weighted sums
+		 * @param dst - destination for the activated outputs
+		 * @param len - the number of elements to activate
+		 */
+		public void apply(double[] src, double[] dst, int len);
+		
+		/**
+		 * Writes dy_i/dk_i, the derivative of each activated output with 
+		 * respect to its own weighted sum, to dst in one linear-time pass.
+		 * outputs and dst may be the same array.
+		 * @param outputs - the activated outputs
+		 * @param dst - destination for the derivatives
+		 * @param len - the number of elements
+		 */
+		public void dydk(double[] outputs, double[] dst, int len);
 	}
 	
 	//-------------------------------------------------------------------------
@@ -107,16 +126,57 @@ public class Mlp {
 	 * @param mlp - the mlp to copy
 	 */
 	public Mlp(Mlp mlp) {
+		this(mlp, false);
+	}
+	
+	/**
+	 * Copies an mlp, optionally sharing its weights. A copy that shares 
+	 * weights reads and writes the same weight arrays as the original but
+	 * has its own deltaWeights, blames and inputs, so it can accumulate 
+	 * gradients privately against one authoritative set of weights.
+	 * @param mlp - the mlp to copy
+	 * @param shareWeights - whether to share mlp's weight arrays
+	 */
+	public Mlp(Mlp mlp, boolean shareWeights) {
 		Layer current = mlp.getHead();
 		while(current != null) {
-			append(new Layer(current));
+			append(new Layer(current, shareWeights));
 			current = current.next();
 		}
 	}
 
-	// TODO implement layers nodes weights
+	/**
+	 * Creates an Mlp with the given weights and no activation functions.
+	 * @param layersNodesWeights - weights arranged as [layer][node][input]
+	 */
 	public Mlp(double[][][] layersNodesWeights) {
-		
+		this(layersNodesWeights, 
+			 new IActivationFunction[layersNodesWeights.length]);
+	}
+	
+	/**
+	 * Creates an Mlp with the given weights and activation functions.
+	 * @param layersNodesWeights - weights arranged as [layer][node][input]
+	 * @param funcs - the activation function for each layer, or null
+	 */
+	public Mlp(double[][][] layersNodesWeights, IActivationFunction[] funcs) {
+		for(int l=0; l < layersNodesWeights.length; l++) {
+			double[][] nodesWeights = layersNodesWeights[l];
+			int numInputs = nodesWeights[0].length;
+			double[] weights = new double[nodesWeights.length * numInputs];
+			for(int i=0; i < nodesWeights.length; i++) {
+				if(nodesWeights[i].length != numInputs)
+					throw new IllegalArgumentException(
+							"All nodes in a layer need the same number "
+							+ "of weights.");
+				System.arraycopy(nodesWeights[i], 0, 
+								 weights, i * numInputs, 
+								 numInputs);
+			}
+			Layer layer = new Layer(nodesWeights.length, funcs[l]);
+			layer.setWeights(weights);
+			append(layer);
+		}
 	}
 	
 	/**
@@ -138,6 +198,95 @@ public class Mlp {
 		return mHead.evaluate(inputs, true, true, isTraining);
 	}
 	
+	/**
+	 * Returns an immutable snapshot of this mlp that may be evaluated by any
+	 * number of threads at once.
+	 * @return
+	 */
+	public FrozenMlp freeze() {
+		return new FrozenMlp(this);
+	}
+	
+	/**
+	 * Returns a new Workspace sized for this mlp's layers. A workspace must 
+	 * only be used by one thread at a time, so keep one per thread.
+	 * @return
+	 */
+	public Workspace newWorkspace() {
+		int[] layerSizes = new int[mSize];
+		Layer current = mHead;
+		for(int i=0; current != null; i++) {
+			layerSizes[i] = current.size();
+			current = current.next();
+		}
+		return new Workspace(layerSizes);
+	}
+	
+	/**
+	 * Returns the mlp's evaluation of this input, computed in the given
+	 * workspace's buffers. Nothing is allocated once the weights have been
+	 * initialized, which makes this the path to use for bulk scoring.
+	 * Never tracks training variables.
+	 * @param inputs - the feature vector to evaluate
+	 * @param workspace - buffers from newWorkspace(), owned by this thread
+	 * @return the output buffer in workspace, which is overwritten by the
+	 * 			next call that uses the same workspace
+	 */
+	public double[] evaluate(double[] inputs, Workspace workspace) {
+		if(workspace.size() != mSize)
+			throw new IllegalArgumentException(
+					"The workspace was not made for this mlp.");
+		
+		double[] outputs = inputs;
+		Layer current = mHead;
+		for(int i=0; current != null; i++) {
+			outputs = current.evaluate(outputs, workspace.getBuffer(i));
+			current = current.next();
+		}
+		return outputs;
+	}
+	
+	/**
+	 * Returns the mlp's evaluation of a block of inputs. Each layer 
+	 * processes the whole block as a single matrix-matrix product, which is
+	 * much friendlier to the cache than evaluating inputs one at a time.
+	 * @param inputs - the feature vectors to evaluate, all the same length
+	 * @return an output vector for each input
+	 */
+	public double[][] evaluateBatch(double[][] inputs) {
+		if(inputs.length == 0)
+			return new double[0][];
+		
+		int numRows = inputs.length;
+		int numInputs = inputs[0].length;
+		double[] block = new double[numRows * numInputs];
+		for(int r=0; r < numRows; r++) {
+			if(inputs[r].length != numInputs)
+				throw new IllegalArgumentException(
+						"All inputs must have the same length.");
+			System.arraycopy(inputs[r], 0, block, r * numInputs, numInputs);
+		}
+		
+		double[] outputBlock = evaluateBatch(block, numRows);
+		int numOutputs = outputBlock.length / numRows;
+		double[][] outputs = new double[numRows][numOutputs];
+		for(int r=0; r < numRows; r++)
+			System.arraycopy(outputBlock, r * numOutputs, 
+							 outputs[r], 0, numOutputs);
+		return outputs;
+	}
+	
+	/**
+	 * Returns the mlp's evaluation of a block of inputs stored row-major in
+	 * a single flat array.
+	 * @param inputs - numRows feature vectors, row-major
+	 * @param numRows - the number of feature vectors in inputs
+	 * @return numRows output vectors, row-major
+	 */
+	public double[] evaluateBatch(double[] inputs, int numRows) {
+		return mHead.evaluateBatch(inputs, numRows, true, true);
+	}
+	
 	/**
 	 * Inserts a layer at the end of the mlp.
 	 * @param layer
@@ -274,9 +423,12 @@ public class Mlp {
 		private Layer mPrev = null;
 		private Mlp.IActivationFunction mActivationFunction = null;
 		
-		// Nodes arranged as [nodeIdx][weights/deltaWeights][values]
-		// TODO should probably just bite the bullet and use Node objects.
-		private double[][][] mNodes = null;
+		// Weights arranged row-major as [nodeIdx * mNumInputs + inputIdx]
+		// so that the whole layer is one contiguous block.
+		private int mNumNodes;
+		private int mNumInputs = 0;
+		private double[] mWeights = null;
+		private double[] mDeltaWeights = null;
 		
 		// Training vars
 		private double[] mBlames = null;
@@ -292,9 +444,7 @@ public class Mlp {
 				throw new IllegalArgumentException(
 						"numNodes must be greater than zero.");
 			}
-			mNodes = new double[numNodes][][];
-			for(int i=0; i < mNodes.length; i++)
-				mNodes[i] = new double[2][];
+			mNumNodes = numNodes;
 			mActivationFunction = func;
 		}
 		
@@ -303,23 +453,39 @@ public class Mlp {
 		 * @param layer
 		 */
 		public Layer(Layer layer) {
-			mNodes = new double[layer.mNodes.length][][];
-			// Copy the weights for each node
-			for(int i=0; i<layer.mNodes.length; i++) {
-				if(layer.mNodes[i] != null) {
-					mNodes[i] = new double[layer.mNodes[i].length][];
-					for(int j=0; j<layer.mNodes[i].length; j++) {
-						if(layer.mNodes[i][j] != null) {
-							mNodes[i][j]= new double[layer.mNodes[i][j].length];
-							for(int k=0; k<layer.mNodes[i][j].length; k++)
-								mNodes[i][j][k] = layer.mNodes[i][j][k];
-						}
-					}
-				}
-			}
+			this(layer, false);
+		}
+		
+		/**
+		 * Copies a layer, optionally sharing its weight array. 
+		 * deltaWeights are always copied.
+		 * @param layer - the layer to copy
+		 * @param shareWeights - whether to share layer's weight array
+		 */
+		public Layer(Layer layer, boolean shareWeights) {
+			mNumNodes = layer.mNumNodes;
+			mNumInputs = layer.mNumInputs;
+			if(layer.mWeights != null)
+				mWeights = shareWeights 
+						? layer.mWeights : layer.mWeights.clone();
+			if(layer.mDeltaWeights != null)
+				mDeltaWeights = layer.mDeltaWeights.clone();
 			mActivationFunction = layer.mActivationFunction;
 		}
 		
+		/**
+		 * Initializes this layer's weights for the given input length if 
+		 * they haven't been initialized yet.
+		 * @param numInputs - the length of the feature vectors fed to layer
+		 */
+		private void ensureWeights(int numInputs) {
+			if(mWeights == null) {
+				mNumInputs = numInputs;
+				mWeights = newWeightsVector(mNumNodes * numInputs);
+				mDeltaWeights = new double[mWeights.length];
+			}
+		}
+		
 		/**
 		 * Returns this layer's evaluation of inputs with the option of 
 		 * recursing through next layers. One might set recurse to false 
@@ -340,39 +506,34 @@ public class Mlp {
 			// For performance, only cache last inputs when we're training
 			if(isTraining) {
 				mLastInputs = inputs;
-				mBlames = new double[mNodes.length];
+				if(mBlames == null || mBlames.length != mNumNodes)
+					mBlames = new double[mNumNodes];
+				else
+					Arrays.fill(mBlames, 0);
 			}
 			
 			// If there are nodes, 
-			if(mNodes.length > 0) {
-				// Generate an output vector from node outputs
-				outputs = new double[mNodes.length];
-				for(int i=0; i < mNodes.length; i++) {
-					// If we haven't initialized weights for this node
-					if(mNodes[i][0] == null) {
-						// Do so now with this input vector's size
-						mNodes[i][0] = newWeightsVector(inputs.length);
-						int len = mNodes[i][0].length;
-						mNodes[i][1] = new double[len];
-					}
-					
-					// Get a handle on the weights array
-					double[] weights = mNodes[i][0];
-					
-					// weighted sum of weights and inputs
-					outputs[i] = Vector.dot(weights,inputs);
-					
-					// If there is an activation function, run output through
-					if(activation && mActivationFunction != null)
-						outputs[i] = mActivationFunction.y(outputs, i);
-				}
-			} else if(activation && mActivationFunction != null){
-				// if there are no nodes, but there is an activation func
-				// we just return the activation of inputs
-				for(int i=0; i < outputs.length; i++)
-					outputs[i] = mActivationFunction.y(outputs, i);
+			if(mNumNodes > 0) {
+				// If we haven't initialized weights, do so now with this 
+				// input vector's size
+				ensureWeights(inputs.length);
+				if(inputs.length != mNumInputs)
+					throw new IllegalArgumentException(
+							"inputs length doesn't match layer.");
+				
+				// Generate an output vector from node outputs, the weighted
+				// sums of each node's weights row and inputs
+				outputs = new double[mNumNodes];
+				Matrix.gemv(mNumNodes, mNumInputs, 1, 
+							mWeights, 0, mNumInputs, 
+							inputs, 0, 
+							0, outputs, 0);
 			}
 			
+			// If there is an activation function, run outputs through
+			if(activation && mActivationFunction != null)
+				activate(outputs);
+			
 			// If caller wants the final output, recurse through next layers
 			if(recurse && mNext != null)
 				outputs = mNext.evaluate(outputs, recurse, activation, isTraining);
@@ -381,29 +542,108 @@ public class Mlp {
 		}
 		
 		/**
-		 * Sets the blame vector for this layer.
-		 * @param blames
+		 * Writes this layer's activated evaluation of inputs into outputs
+		 * without allocating. Does not recurse through next layers and 
+		 * never tracks training variables.
+		 * @param inputs - the feature vector
+		 * @param outputs - destination with one element per node
+		 * @return outputs
 		 */
-		public void setBlames(double[] blames) {
-			mBlames = blames;
+		public double[] evaluate(double[] inputs, double[] outputs) {
+			ensureWeights(inputs.length);
+			if(inputs.length != mNumInputs || outputs.length != mNumNodes)
+				throw new IllegalArgumentException(
+						"inputs or outputs length doesn't match layer.");
+			
+			Matrix.gemv(mNumNodes, mNumInputs, 1, 
+						mWeights, 0, mNumInputs, 
+						inputs, 0, 
+						0, outputs, 0);
+			
+			if(mActivationFunction != null)
+				activate(outputs);
+			
+			return outputs;
 		}
 		
 		/**
-		 * Sets the weights vector at the given node
-		 * @param idx - the index of the node
-		 * @param weights - the new weights vector
+		 * Returns this layer's evaluation of a block of inputs, computed as
+		 * a single cache-blocked matrix-matrix product against the layer's
+		 * weights. 
+		 * Never tracks training variables.
+		 * @param inputs - numRows feature vectors, row-major
+		 * @param numRows - the number of feature vectors in inputs
+		 * @param recurse - whether or not to recurse through next layers
+		 * @param activation - activation function applied to layer's outputs
+		 * @return numRows output vectors, row-major
 		 */
-		public void setWeightsAt(int idx, double[] weights) {
-			mNodes[idx][0] = weights;
+		public double[] evaluateBatch(double[] inputs,
+									  int numRows,
+									  boolean recurse,
+									  boolean activation)
+		{
+			if(numRows <= 0)
+				throw new IllegalArgumentException(
+						"numRows must be greater than zero.");
+			
+			ensureWeights(inputs.length / numRows);
+			if(inputs.length != numRows * mNumInputs)
+				throw new IllegalArgumentException(
+						"inputs length must be numRows * numInputs.");
+			
+			double[] outputs = new double[numRows * mNumNodes];
+			// outputs = inputs * weights^T
+			Matrix.gemmNT(numRows, mNumNodes, mNumInputs, 1, 
+						  inputs, 0, mNumInputs, 
+						  mWeights, 0, mNumInputs, 
+						  0, outputs, 0, mNumNodes);
+			
+			// Run each output row through the activation function
+			if(activation && mActivationFunction != null) {
+				double[] row = new double[mNumNodes];
+				for(int r=0; r < numRows; r++) {
+					int offset = r * mNumNodes;
+					System.arraycopy(outputs, offset, row, 0, mNumNodes);
+					activate(row);
+					System.arraycopy(row, 0, outputs, offset, mNumNodes);
+				}
+			}
+			
+			if(recurse && mNext != null)
+				outputs = mNext.evaluateBatch(outputs, numRows, 
+											  recurse, activation);
+			
+			return outputs;
 		}
 		
 		/**
-		 * Sets the deltaWeights vector at the given node
-		 * @param idx - the index of the node
-		 * @param deltaWeights - the new deltaWeights
+		 * Runs outputs through this layer's activation function in-place.
+		 * @param outputs
 		 */
-		public void setDeltaWeightsAt(int idx, double[] deltaWeights) {
-			mNodes[idx][1] = deltaWeights;
+		private void activate(double[] outputs) {
+			mActivationFunction.apply(outputs, outputs, outputs.length);
+		}
+		
+		/**
+		 * Sets the blame vector for this layer.
+		 * @param blames
+		 */
+		public void setBlames(double[] blames) {
+			mBlames = blames;
+		}
+		
+		/**
+		 * Sets this layer's weights block.
+		 * @param weights - [numNodes x numInputs], row-major
+		 */
+		public void setWeights(double[] weights) {
+			if(weights.length % mNumNodes != 0)
+				throw new IllegalArgumentException(
+						"weights length must be a multiple of numNodes.");
+			mNumInputs = weights.length / mNumNodes;
+			mWeights = weights;
+			if(mDeltaWeights == null || mDeltaWeights.length != weights.length)
+				mDeltaWeights = new double[weights.length];
 		}
 		
 		/**
@@ -423,21 +663,28 @@ public class Mlp {
 		}
 		
 		/**
-		 * Returns the weights vector for a given node
-		 * @param idx
-		 * @return
+		 * Returns this layer's weights block, [numNodes x numInputs] 
+		 * row-major. Node idx's weights start at idx * getNumInputs().
+		 * @return null if the weights have not been initialized yet
 		 */
-		public double[] getWeightsAt(int idx) {
-			return mNodes[idx][0];
+		public double[] getWeights() {
+			return mWeights;
 		}
 		
 		/**
-		 * Returns the deltaWeights for a given node
-		 * @param idx
-		 * @return
+		 * Returns this layer's deltaWeights block, laid out like getWeights()
+		 * @return null if the weights have not been initialized yet
 		 */
-		public double[] getDeltaWeightsAt(int idx) {
-			return mNodes[idx][1];
+		public double[] getDeltaWeights() {
+			return mDeltaWeights;
+		}
+		
+		/**
+		 * Returns the length of the feature vectors this layer accepts.
+		 * @return 0 if the weights have not been initialized yet
+		 */
+		public int getNumInputs() {
+			return mNumInputs;
 		}
 		
 		/**
@@ -477,7 +724,7 @@ public class Mlp {
 		 * @return
 		 */
 		public int size() {
-			return mNodes.length;
+			return mNumNodes;
 		}
 		
 		@Override
@@ -485,16 +732,31 @@ public class Mlp {
 			String str ="";
 			str += "lastInputs: " + Arrays.toString(mLastInputs) + "\n";
 			str += "Nodes: \n";
-			for(int i=0; i < mNodes.length; i++) {
+			for(int i=0; i < mNumNodes; i++) {
 				str += "  Node " + i + "\n";
 				if(mBlames != null)
 					str += "    blame: " + mBlames[i] + "\n";
-				str += "    weights: " + Arrays.toString(mNodes[i][0]) + "\n";
-				str += "    deltaWeights: " + Arrays.toString(mNodes[i][1]) + "\n";
+				str += "    weights: " + rowToString(mWeights, i) + "\n";
+				str += "    deltaWeights: " 
+						+ rowToString(mDeltaWeights, i) + "\n";
 			}
 			
 			return str;
 		}
+		
+		/**
+		 * Returns the string representation of a node's row in a block.
+		 * @param block - a weights or deltaWeights block
+		 * @param idx - the index of the node
+		 * @return
+		 */
+		private String rowToString(double[] block, int idx) {
+			if(block == null)
+				return "null";
+			int offset = idx * mNumInputs;
+			return Arrays.toString(
+					Arrays.copyOfRange(block, offset, offset + mNumInputs));
+		}
 
 		/**
 		 * Returns the IActivationFunction applied to this layer's outputs
@@ -505,4 +767,43 @@ public class Mlp {
 		}
 		
 	} // End Layer
+	
+	/**
+	 * Preallocated per-layer output buffers for Mlp.evaluate(inputs, 
+	 * workspace). Not thread-safe; each thread needs its own.
+	 * @author Michael DuBois
+	 *
+	 */
+	public static class Workspace {
+		
+		private double[][] mBuffers;
+		
+		/**
+		 * Constructs a Workspace.
+		 * @param layerSizes - the number of nodes in each layer
+		 */
+		public Workspace(int[] layerSizes) {
+			mBuffers = new double[layerSizes.length][];
+			for(int i=0; i < layerSizes.length; i++)
+				mBuffers[i] = new double[layerSizes[i]];
+		}
+		
+		/**
+		 * Returns the output buffer for the given layer
+		 * @param layerIdx
+		 * @return
+		 */
+		public double[] getBuffer(int layerIdx) {
+			return mBuffers[layerIdx];
+		}
+		
+		/**
+		 * Returns the number of layers this workspace has buffers for.
+		 * @return
+		 */
+		public int size() {
+			return mBuffers.length;
+		}
+		
+	} // End Workspace
 }
@@ -0,0 +1,234 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads and writes the versioned binary Mlp model format.
+ * Models are loaded by memory-mapping the file, so the weights go straight
+ * from the page cache into a FrozenMlp without any parsing.
+ *
+ * Layout (big-endian):
+ *   int    magic ('M','L','P','W')
+ *   int    version
+ *   int    numLayers
+ *   for each layer:
+ *     int    numNodes
+ *     int    numInputs
+ *     int    activation type (one of the ACTIVATION_* constants)
+ *     double activation alpha
+ *     double weights[numNodes * numInputs], row-major
+ *
+ * @author Michael DuBois
+ *
+ */
+public class MlpFile {
+
+	public static final int MAGIC = 0x4D4C5057;
+	public static final int VERSION = 1;
+
+	// Activation function types
+	public static final int ACTIVATION_NONE = 0;
+	public static final int ACTIVATION_LOGISTIC = 1;
+	public static final int ACTIVATION_SOFTMAX = 2;
+
+	// Sizes in bytes of the file and layer headers
+	private static final int FILE_HEADER_SIZE = 3 * 4;
+	private static final int LAYER_HEADER_SIZE = 3 * 4 + 8;
+
+	/**
+	 * Writes a model to a file, replacing anything already there.
+	 * @param mlp - the snapshot to write
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void write(FrozenMlp mlp, File file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size(mlp));
+		write(mlp, buffer);
+		buffer.flip();
+
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			FileChannel channel = out.getChannel();
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(true);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes a model takes.
+	 * @param mlp
+	 * @return
+	 * @throws IOException if the model is too large to write
+	 */
+	static int size(FrozenMlp mlp) throws IOException {
+		long size = FILE_HEADER_SIZE;
+		for(int l=0; l < mlp.size(); l++) {
+			size += LAYER_HEADER_SIZE
+					+ 8L * mlp.getLayerSize(l) * mlp.getLayerInputs(l);
+		}
+		if(size > Integer.MAX_VALUE)
+			throw new IOException("Model is too large to write.");
+		return (int) size;
+	}
+
+	/**
+	 * Writes a model into a buffer at its position.
+	 * @param mlp
+	 * @param buffer - with at least size(mlp) bytes remaining
+	 */
+	static void write(FrozenMlp mlp, ByteBuffer buffer) {
+		int numLayers = mlp.size();
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(numLayers);
+		for(int l=0; l < numLayers; l++) {
+			Mlp.IActivationFunction func = mlp.getActivationFunction(l);
+			buffer.putInt(mlp.getLayerSize(l));
+			buffer.putInt(mlp.getLayerInputs(l));
+			buffer.putInt(activationType(func));
+			buffer.putDouble(activationAlpha(func));
+			double[] weights = mlp.getWeights(l);
+			buffer.asDoubleBuffer().put(weights);
+			buffer.position(buffer.position() + 8 * weights.length);
+		}
+	}
+
+	/**
+	 * Reads a model from a file by memory-mapping it.
+	 * @param file
+	 * @return an immutable snapshot of the model
+	 * @throws IOException if the file is not a model this version can read
+	 */
+	public static FrozenMlp read(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			MappedByteBuffer buffer =
+				channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return read(buffer, file.getPath());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a model from a buffer positioned at the start of a model.
+	 * @param buffer
+	 * @param name - used in error messages
+	 * @return
+	 * @throws IOException
+	 */
+	static FrozenMlp read(ByteBuffer buffer, String name)
+			throws IOException
+	{
+		if(buffer.remaining() < FILE_HEADER_SIZE
+				|| buffer.getInt() != MAGIC)
+			throw new IOException("Not an Mlp model file: " + name);
+		int version = buffer.getInt();
+		if(version != VERSION)
+			throw new IOException("Unsupported Mlp model version "
+					+ version + ": " + name);
+
+		// Every layer needs at least its header, so the count can't be more
+		// than the bytes left allow
+		int numLayers = buffer.getInt();
+		if(numLayers <= 0
+				|| (long) LAYER_HEADER_SIZE * numLayers > buffer.remaining())
+			throw new IOException("Corrupt Mlp model file: " + name);
+
+		int[] layerSizes = new int[numLayers];
+		int[] layerInputs = new int[numLayers];
+		double[][] weights = new double[numLayers][];
+		Mlp.IActivationFunction[] funcs =
+				new Mlp.IActivationFunction[numLayers];
+
+		for(int l=0; l < numLayers; l++) {
+			if(buffer.remaining() < LAYER_HEADER_SIZE)
+				throw new IOException("Truncated Mlp model file: " + name);
+			layerSizes[l] = buffer.getInt();
+			layerInputs[l] = buffer.getInt();
+			int type = buffer.getInt();
+			double alpha = buffer.getDouble();
+			funcs[l] = newActivationFunction(type, alpha);
+
+			long length = (long) layerSizes[l] * layerInputs[l];
+			if(layerSizes[l] <= 0 || layerInputs[l] <= 0
+					|| 8 * length > buffer.remaining())
+				throw new IOException("Corrupt Mlp model file: " + name);
+
+			// Bulk copy the weights block out of the mapped pages
+			weights[l] = new double[(int) length];
+			DoubleBuffer doubles = buffer.asDoubleBuffer();
+			doubles.get(weights[l]);
+			buffer.position(buffer.position() + 8 * weights[l].length);
+		}
+
+		try {
+			return new FrozenMlp(layerSizes, layerInputs, weights, funcs);
+		} catch(IllegalArgumentException e) {
+			throw new IOException("Corrupt Mlp model file: " + name
+									+ " (" + e.getMessage() + ")");
+		}
+	}
+
+	/**
+	 * Returns the ACTIVATION_* type of an activation function.
+	 * @param func
+	 * @return
+	 */
+	public static int activationType(Mlp.IActivationFunction func) {
+		if(func == null)
+			return ACTIVATION_NONE;
+		if(func instanceof StandardLogistic)
+			return ACTIVATION_LOGISTIC;
+		if(func instanceof SoftMax)
+			return ACTIVATION_SOFTMAX;
+		throw new IllegalArgumentException(
+				"Can't save activation function "
+				+ func.getClass().getName());
+	}
+
+	/**
+	 * Returns the alpha parameter of an activation function.
+	 * @param func
+	 * @return 0 if func is null
+	 */
+	public static double activationAlpha(Mlp.IActivationFunction func) {
+		if(func instanceof StandardLogistic)
+			return ((StandardLogistic) func).getAlpha();
+		if(func instanceof SoftMax)
+			return ((SoftMax) func).getAlpha();
+		return 0;
+	}
+
+	/**
+	 * Constructs the activation function with the given type and alpha.
+	 * @param type - one of the ACTIVATION_* constants
+	 * @param alpha
+	 * @return null for ACTIVATION_NONE
+	 * @throws IOException if the type is unknown
+	 */
+	public static Mlp.IActivationFunction newActivationFunction(int type,
+															  double alpha)
+		throws IOException
+	{
+		switch(type) {
+		case ACTIVATION_NONE:
+			return null;
+		case ACTIVATION_LOGISTIC:
+			return new StandardLogistic(alpha);
+		case ACTIVATION_SOFTMAX:
+			return new SoftMax(alpha);
+		default:
+			throw new IOException("Unknown activation type " + type);
+		}
+	}
+}
@@ -1,8 +1,13 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
@@ -10,6 +15,8 @@ import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -32,25 +39,131 @@ public class MlpTrainer {
 	public static final int EPOCH_CELL_SIZE = 4;
 	public static final int ERROR_CELL_SIZE = 10;
 	
-	// Sleep time in ms between checks if threads are complete
-	private static final long SLEEP_TIME_START = 2;
-	private static final long SLEEP_TIME_INCREMENT = 10;
-	private static final long SLEEP_TIME_MAX = 150;
+	// Time in ms between progress bar updates while tasks are running
+	private static final long PROGRESS_INTERVAL = 250;
 	
-	public static void main(String[] args) {
+	// In mini-batch mode, windows are read into a buffer this many batches
+	// long and shuffled before they're cut into batches
+	private static final int SHUFFLE_BUFFER_BATCHES = 32;
+	
+	/**
+	 * Compares the synchronous and asynchronous trainers on a directory of
+	 * generated .mfc training data. Trains copies of the same initial 
+	 * network with 1, 2, 4... maxThreads threads and prints each run's
+	 * throughput, time to the target error and final error. With a
+	 * batchSize the synchronous runs are mini-batch, which trains on one 
+	 * thread.
+	 * Usage: MlpTrainer dataDir [maxEpochs [targetError [maxThreads 
+	 * 			[batchSize]]]]
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length < 1) {
+			System.out.println("Usage: MlpTrainer dataDir [maxEpochs "
+					+ "[targetError [maxThreads [batchSize]]]]");
+			System.exit(1);
+		}
+		int maxEpochs = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+		double targetError = 
+				(args.length > 2) ? Double.parseDouble(args[2]) : .1;
+		int maxThreads = (args.length > 3) 
+				? Integer.parseInt(args[3]) 
+				: Runtime.getRuntime().availableProcessors();
+		int batchSize = (args.length > 4) ? Integer.parseInt(args[4]) : 0;
+		
+		File[] files = new File(args[0]).listFiles();
+		List<File> fileList = new ArrayList<File>();
+		for(File file : files) {
+			if(file.getName().endsWith(".mfc"))
+				fileList.add(file);
+		}
+		Collections.sort(fileList);
+		int trainingSize = (int) (.75 * fileList.size());
+		IDataContainer[] trainingSet = new IDataContainer[trainingSize];
+		IDataContainer[] testingSet = 
+				new IDataContainer[fileList.size() - trainingSize];
+		for(int i=0; i < fileList.size(); i++) {
+			LabeledDataContainer container = 
+					new LabeledDataContainer(fileList.get(i));
+			if(i < trainingSize)
+				trainingSet[i] = container;
+			else
+				testingSet[i - trainingSize] = container;
+		}
 		
+		// Every run starts from the same weights
+		Mlp initial = new Mlp();
+		initial.append(new Mlp.Layer(30, new StandardLogistic(1)))
+			   .append(new Mlp.Layer(10, new StandardLogistic(1)))
+			   .append(new Mlp.Layer(1, new SoftMax(1)));
+		initial.evaluate(firstFeatures(trainingSet));
+		
+		PrintStream quiet = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {}
+		});
+		
+		System.out.println("mode         | threads | samples/s | epochs "
+				+ "| ms to " + targetError + " | final error");
+		for(int numThreads=1; numThreads <= maxThreads; numThreads *= 2) {
+			for(int async=0; async < 2; async++) {
+				MlpTrainer trainer = new MlpTrainer(new Mlp(initial), quiet);
+				trainer.setAsynchronous(async == 1);
+				trainer.setBatchSize(batchSize);
+				trainer.setTargetError(targetError);
+				int epochs = trainer.trainMlp(trainingSet, testingSet, 
+											  0, maxEpochs, numThreads);
+				long ms = trainer.getTimeToTargetError();
+				System.out.println(
+					paddedCell((async == 1) ? "asynchronous" : "synchronous",
+							   13) + "| "
+					+ paddedCell("" + numThreads, 8) + "| "
+					+ paddedCell("" + trainer.getSamplesPerSecond(), 10) 
+					+ "| " + paddedCell("" + epochs, 7) + "| "
+					+ paddedCell((ms < 0) ? "-" : "" + ms, 
+								 ERROR_CELL_SIZE + 3) + "| "
+					+ trainer.getLastError());
+			}
+		}
+	}
+	
+	/**
+	 * Returns the first feature vector in a set of containers.
+	 * @param containers
+	 * @return
+	 * @throws IDataContainer.DataUnavailableException
+	 */
+	private static double[] firstFeatures(IDataContainer[] containers) 
+			throws IDataContainer.DataUnavailableException 
+	{
+		try {
+			containers[0].open();
+			return containers[0].next().getFeatures();
+		} finally {
+			try { containers[0].close(); } catch(Exception e) {}
+		}
 	}
 	
 	// The main network we are training
 	private Mlp mMainNet;
-	// An array of layers in slave networks distributed among tasks
-	// we use this when we update and propagate weights
-	Mlp.Layer[] mTaskLayers;
+	// Read-only snapshot of mMainNet shared by all TestingTasks
+	private FrozenMlp mSnapshot;
+	// The tested snapshot with the lowest error, and its error
+	private FrozenMlp mBestSnapshot;
+	private double mBestError;
+	// Averages the training tasks' deltaWeights into mMainNet
+	private WeightReducer mReducer;
+	// Training tasks share mMainNet's weight arrays. They're only written
+	// between epochs, and each update is published by bumping this version,
+	// which tasks read before they start.
+	private volatile int mWeightsVersion = 0;
 	
 	private PrintStream mOut;
 	private int mEpoch = 0;
 	private double mLastError = Double.NaN;
 	private double mLearningRate = 1;
+	// The update rule. mLearningRate scales its rate.
+	private IOptimizer mOptimizer = 
+			new GradientAscent(GradientAscent.DEFAULT_LEARNING_RATE);
 	private String mLastErrorStr;
 	private double mLastDeltaError;
 	private String mLastDeltaErrorStr;
@@ -65,10 +178,71 @@ public class MlpTrainer {
 	private TestingTask[] mTestingTasks;
 	private List<Future<Double>> mTestingTaskFutures;
 	private ExecutorCompletionService<Double> mTestingEcs;
+	private long mTestingStart;
+	// The squared residuals and number of outputs the last test pooled
+	private double mTestSum;
+	private double mTestQuantity;
+	// Whether each epoch's snapshot is tested while the next one trains
+	private boolean mPipelined = false;
 	
 	private ExecutorService mExecutor;
+	// Redraws the progress bar so the waiting thread doesn't have to
+	private ScheduledExecutorService mProgressExecutor;
 	private int mNumTrainingContainers;
 	private int mNumTestingContainers;
+	private IDataContainer[] mTrainingContainers;
+	private IDataContainer[] mTestingContainers;
+	// Tasks take the next unprocessed container from these, so every
+	// container is used and no task is stuck with a fixed share of the
+	// longest songs
+	private AtomicInteger mNextTrainingContainer = new AtomicInteger(0);
+	private AtomicInteger mNextTestingContainer = new AtomicInteger(0);
+	
+	// Mini-batch stuff. A batch size of 0 means full-batch training.
+	private int mBatchSize = 0;
+	private Random mShuffleRandom = new Random();
+	private BatchGradient mBatchGradient;
+	private double[] mShuffleFeatures;
+	private double[] mShuffleLabels;
+	private int[] mShuffleOrder;
+	private double[] mBatchFeatures;
+	private double[] mBatchLabels;
+	private int mNumUpdates;
+	
+	// Holds training and testing data in memory across epochs, or null
+	private DatasetCache mCache;
+	
+	// Training stops once the testing error reaches this
+	private double mTargetError = Double.NEGATIVE_INFINITY;
+	private long mTimeToTargetError = -1;
+	
+	// In asynchronous mode training tasks update the shared weights 
+	// themselves, Hogwild-style, and there's no adjustWeights barrier
+	private boolean mAsynchronous = false;
+	
+	// Sampled validation. Each epoch's error is estimated from a fixed
+	// sample of mValidationSize testing windows, and the full testing set
+	// is only run every mFullEvaluationInterval epochs. 0 means off.
+	private int mValidationSize = 0;
+	private int mFullEvaluationInterval;
+	private ValidationSample mValidation;
+	private double mLastSampledError;
+	// The epoch of the last full evaluation, -1 for the initial one
+	private int mLastFullEpoch;
+	
+	// Checkpoints are written every mCheckpointInterval epochs, by a 
+	// background thread so training carries on during the I/O
+	private File mCheckpointFile;
+	private int mCheckpointInterval;
+	private ExecutorService mCheckpointExecutor;
+	private Future<?> mCheckpointFuture;
+	// State to start the next trainMlp() from, or null to start fresh
+	private TrainingCheckpoint mResume;
+	private boolean mResumed;
+	
+	// Totals over the training phases of the last trainMlp()
+	private long mTrainingSamples;
+	private long mTrainingNanos;
 
 
 	/**
@@ -81,6 +255,181 @@ public class MlpTrainer {
 		mOut = out;
 	}
 	
+	/**
+	 * Sets the number of windows per weight update. 0, the default, trains
+	 * in full-batch mode: one update per epoch from the average over every
+	 * TrainingTask's shard. Otherwise windows are shuffled and the weights
+	 * are updated after every batchSize windows.
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		if(batchSize < 0)
+			throw new IllegalArgumentException(
+					"batchSize must not be negative.");
+		mBatchSize = batchSize;
+	}
+	
+	/**
+	 * Returns the number of windows per weight update, 0 for full-batch.
+	 * @return
+	 */
+	public int getBatchSize() {
+		return mBatchSize;
+	}
+	
+	/**
+	 * Sets a cache to serve training and testing data from memory after
+	 * it's first read, instead of re-reading every container every epoch.
+	 * @param cache - or null to always stream
+	 */
+	public void setDatasetCache(DatasetCache cache) {
+		mCache = cache;
+	}
+	
+	/**
+	 * Sets a testing error at which training is considered converged.
+	 * The wall-clock time taken to reach it is reported.
+	 * @param targetError
+	 */
+	public void setTargetError(double targetError) {
+		mTargetError = targetError;
+	}
+	
+	/**
+	 * Sets whether training tasks update the weights asynchronously. 
+	 * Each task streams through containers and adds its deltaWeights 
+	 * straight into the shared weights every max(batchSize, 1) windows, 
+	 * without locks, so tasks never wait on each other. Updates racing on
+	 * the same weight can be lost, which SGD tolerates.
+	 * @param asynchronous
+	 */
+	public void setAsynchronous(boolean asynchronous) {
+		mAsynchronous = asynchronous;
+	}
+	
+	/**
+	 * Returns whether training tasks update the weights asynchronously.
+	 * @return
+	 */
+	public boolean isAsynchronous() {
+		return mAsynchronous;
+	}
+	
+	/**
+	 * Sets the rule used to update the weights. Its state is reset at the
+	 * start of every trainMlp().
+	 * @param optimizer
+	 */
+	public void setOptimizer(IOptimizer optimizer) {
+		if(optimizer == null)
+			throw new IllegalArgumentException("optimizer must not be null.");
+		mOptimizer = optimizer;
+	}
+	
+	/**
+	 * Sets sampled validation. Each epoch's error is then estimated from a 
+	 * fixed stratified sample of testing windows, and the whole testing set
+	 * is only evaluated every fullEvaluationInterval epochs, or when the 
+	 * estimate suggests training is about to stop. Convergence is only 
+	 * decided on full evaluations. Doesn't apply when pipelined.
+	 * @param sampleSize - the number of windows to sample, 0 for off
+	 * @param fullEvaluationInterval
+	 */
+	public void setSampledValidation(int sampleSize, 
+									 int fullEvaluationInterval) 
+	{
+		if(sampleSize < 0 || fullEvaluationInterval <= 0)
+			throw new IllegalArgumentException(
+					"sampleSize must be >= 0 and the interval > 0.");
+		mValidationSize = sampleSize;
+		mFullEvaluationInterval = fullEvaluationInterval;
+	}
+	
+	/**
+	 * Sets where and how often to checkpoint the training state.
+	 * @param file - replaced by each checkpoint, or null for none
+	 * @param interval - the number of epochs between checkpoints
+	 */
+	public void setCheckpoint(File file, int interval) {
+		if(interval <= 0)
+			throw new IllegalArgumentException(
+					"interval must be greater than zero.");
+		mCheckpointFile = file;
+		mCheckpointInterval = interval;
+	}
+	
+	/**
+	 * Makes the next trainMlp() carry on from a checkpoint, with the same
+	 * weights, epoch, error tracking and optimizer state. The mlp, optimizer
+	 * and containers must be the ones the checkpoint was made with.
+	 * @param checkpoint
+	 */
+	public void resume(TrainingCheckpoint checkpoint) {
+		mResume = checkpoint;
+	}
+	
+	/**
+	 * Returns the rule used to update the weights.
+	 * @return
+	 */
+	public IOptimizer getOptimizer() {
+		return mOptimizer;
+	}
+	
+	/**
+	 * Sets whether to pipeline epochs. Each epoch's weights are then tested
+	 * in the background while the next epoch trains, so convergence is 
+	 * decided one epoch late, and training ends with the weights of the 
+	 * best tested epoch.
+	 * @param pipelined
+	 */
+	public void setPipelined(boolean pipelined) {
+		mPipelined = pipelined;
+	}
+	
+	/**
+	 * Returns the windows trained per second over the last trainMlp().
+	 * @return
+	 */
+	public long getSamplesPerSecond() {
+		return samplesPerSecond(mTrainingSamples, mTrainingNanos);
+	}
+	
+	/**
+	 * Returns the testing error after the last epoch.
+	 * @return
+	 */
+	public double getLastError() {
+		return mLastError;
+	}
+	
+	/**
+	 * Returns the wall-clock ms the last trainMlp() took to reach the target
+	 * error, or -1 if it never did.
+	 * @return
+	 */
+	public long getTimeToTargetError() {
+		return mTimeToTargetError;
+	}
+	
+	/**
+	 * Describes the training mode.
+	 * @return
+	 */
+	private String modeString() {
+		String mode;
+		if(mAsynchronous)
+			mode = "asynchronous, updates every " 
+					+ Math.max(mBatchSize, 1) + " windows";
+		else if(mBatchSize > 0)
+			mode = "mini-batch, " + mBatchSize + " windows";
+		else
+			mode = "full-batch";
+		if(mPipelined)
+			mode += ", pipelined";
+		return mode + ", " + mOptimizer.getName();
+	}
+	
 	/**
 	 * Pads a string with specified character
 	 * @param character
@@ -186,13 +535,20 @@ public class MlpTrainer {
 		// Setup
 		trainingInit(trainingContainers, testingContainers, maxThreads);
 		
-		mOut.println("Beginning training session...");
+		mOut.println("Beginning training session (" + modeString() + ")...");
 		long startTime = System.currentTimeMillis();
+		mTimeToTargetError = -1;
 
 		try {
-			// compute the initial error for reference
-			computeError(testingContainers);
-			mLastDeltaError = 0;
+			// compute the initial error for reference. When pipelined, it's
+			// computed in the background during the first epoch. A resumed
+			// session already knows it.
+			if(mPipelined) {
+				startTest(mMainNet.freeze());
+			} else if(!mResumed) {
+				computeError(testingContainers);
+				mLastDeltaError = 0;
+			}
 			
 			// While the network has not yet converged,
 			boolean converged = false;
@@ -206,23 +562,60 @@ public class MlpTrainer {
 				mLearningRate = 1D / (.01*mEpoch + 1D);
 				
 				mTrainingTaskFutures.clear();
-				mTestingTaskFutures.clear();
+				boolean evaluated = true;
 				
-				// Train deltaWeights in subsets with training tasks
-				train();
+				if(mAsynchronous) {
+					// Training tasks update the shared weights as they go
+					train();
+				} else if(mBatchSize > 0) {
+					// Update mMainNet after every batch of shuffled windows
+					trainMiniBatches();
+				} else {
+					// Train deltaWeights in subsets with training tasks
+					train();
+					
+					// Accumulate weights to mMainNet and propagate back to 
+					// threads
+					adjustWeights();
+				}
 				
-				// Accumulate weights to mMainNet and propagate back to threads
-				adjustWeights();
+				if(mPipelined) {
+					// Collect the error of the last epoch's snapshot, which
+					// was tested while this epoch trained
+					recordError(finishTest(false));
+					mOut.println("Error of " 
+							+ ((mEpoch == 0) ? "the initial" 
+									: "epoch " + (mEpoch - 1) + "'s") 
+							+ " weights computed in the background (" 
+							+ mLastError + ").");
+				} else if(mValidation != null) {
+					// Estimate error from the sample, and only sometimes 
+					// on the whole testing dataset
+					evaluated = validate(minDeltaError, maxEpochs);
+				} else {
+					// Estimate error on testing dataset
+					computeError(testingContainers);
+				}
 				
-				// Estimate error on testing dataset
-				computeError(testingContainers);
+				if(evaluated && mTimeToTargetError < 0 
+						&& mLastError <= mTargetError) 
+				{
+					mTimeToTargetError = 
+							System.currentTimeMillis() - startTime;
+					mOut.println("Reached target error " + mTargetError 
+							+ " after " + mTimeToTargetError + "ms.");
+				}
 				
 				long elapsed = System.currentTimeMillis() - epochStart;
 				mOut.println("Epoch " + mEpoch + " complete. " 
 								+ elapsed +"ms.\n");
 				
-				// Check convergence conditions
-				if(Math.abs(mLastDeltaError) < minDeltaError) {
+				// Check convergence conditions, against full evaluations
+				if(!evaluated) {
+					// Not yet
+				} else if(mTimeToTargetError >= 0) {
+					converged = true;
+				} else if(Math.abs(mLastDeltaError) < minDeltaError) {
 					converged = true;
 					mOut.println("|mLastDeltaError| < minDeltaError : |"+ mLastDeltaError 
 								+"| < " + minDeltaError + "");
@@ -231,16 +624,34 @@ public class MlpTrainer {
 					mOut.println("WARNING: Exceeded max epochs.");
 				}
 				
+				// Test this epoch's weights while the next one trains
+				if(mPipelined && !converged)
+					startTest(mMainNet.freeze());
+				
 				mEpoch++;
+				
+				if(mCheckpointFile != null 
+						&& mEpoch % mCheckpointInterval == 0)
+					checkpoint();
 	
 			} // end while
+			
+			if(mPipelined) {
+				// The last epoch's weights haven't been tested yet
+				computeError(testingContainers);
+				restoreBestSnapshot();
+			}
 		} catch(InterruptedException e) {
 			e.printStackTrace();
 		} catch (ExecutionException e) {
 			e.printStackTrace();
+		} catch (IDataContainer.DataUnavailableException e) {
+			e.printStackTrace();
 		}
 		
 		mExecutor.shutdownNow();
+		mProgressExecutor.shutdownNow();
+		finishCheckpoint();
 		
 		// Print the results
 		long elapsed = System.currentTimeMillis() - startTime;
@@ -250,10 +661,83 @@ public class MlpTrainer {
 		mOut.println("Training complete. Congratulations! ("
 						+ mEpoch + " epochs | " 
 						+ elapsed + "ms)");
+		if(mTargetError != Double.NEGATIVE_INFINITY) {
+			mOut.println("Time to target error " + mTargetError + ": " 
+					+ ((mTimeToTargetError < 0) 
+						? "not reached" : mTimeToTargetError + "ms"));
+		}
 		
 		return mEpoch;
 	}
 	
+	/**
+	 * Prepares to compute gradients and errors for a TrainingCoordinator,
+	 * which owns the update rule and the epoch loop. The mlp is prepared for
+	 * the data's feature vector length.
+	 * @param trainingContainers - this worker's shard of the training set
+	 * @param testingContainers - this worker's shard of the testing set
+	 * @param maxThreads
+	 */
+	public void startWorker(IDataContainer[] trainingContainers,
+							IDataContainer[] testingContainers,
+							int maxThreads) 
+	{
+		if(mAsynchronous || mBatchSize > 0)
+			throw new IllegalStateException(
+					"Workers only compute full-batch gradients.");
+		trainingInit(trainingContainers, testingContainers, maxThreads);
+	}
+	
+	/**
+	 * Runs one epoch over the worker's training containers against the 
+	 * mlp's current weights, summing every sample's deltaWeights into the 
+	 * mlp's deltaWeights. The weights themselves are left alone.
+	 * @return the number of samples summed
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public int computeGradient() 
+			throws InterruptedException, ExecutionException 
+	{
+		// The coordinator may have replaced the weights since last time
+		mWeightsVersion++;
+		mTrainingTaskFutures.clear();
+		train();
+		
+		int numData = 0;
+		for(Future<Mlp> future : mTrainingTaskFutures)
+			future.get();
+		for(TrainingTask task : mTrainingTasks)
+			numData += task.numDataProcessed;
+		mReducer.accumulate(1);
+		mEpoch++;
+		return numData;
+	}
+	
+	/**
+	 * Tests the mlp's current weights on the worker's testing containers.
+	 * @return {sum of squared residuals, number of outputs}
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public double[] computeTestSums() 
+			throws InterruptedException, ExecutionException 
+	{
+		if(mTestingTasks.length == 0)
+			return new double[] {0, 0};
+		startTest(mMainNet.freeze());
+		finishTest(false);
+		return new double[] {mTestSum, mTestQuantity};
+	}
+	
+	/**
+	 * Releases the worker's threads.
+	 */
+	public void stopWorker() {
+		mExecutor.shutdownNow();
+		mProgressExecutor.shutdownNow();
+	}
+	
 	/**
 	 * Sets up the training stage
 	 * @param trainingContainers
@@ -266,19 +750,47 @@ public class MlpTrainer {
 		mEpoch = 0;
 		mLastError = testingContainers.length;
 		
+		// Serve whatever fits in the cache's budget from memory
+		if(mCache != null) {
+			try {
+				trainingContainers = mCache.cache(trainingContainers);
+				testingContainers = mCache.cache(testingContainers);
+				mOut.println("Cached " 
+					+ DatasetCache.countPacked(trainingContainers) + "/" 
+					+ trainingContainers.length + " training and " 
+					+ DatasetCache.countPacked(testingContainers) + "/" 
+					+ testingContainers.length + " testing containers in " 
+					+ (mCache.getUsedBytes() / 1024) + "KB of " 
+					+ (mCache.getBudgetBytes() / 1024) + "KB " 
+					+ (mCache.isOffHeap() ? "off-heap" : "on-heap") 
+					+ ". The rest will stream.");
+			} catch(IDataContainer.DataUnavailableException e) {
+				e.printStackTrace();
+				mOut.println("Caching failed, streaming data instead.");
+			}
+		}
+		
 		mNumTrainingContainers = trainingContainers.length;
 		mNumTestingContainers = testingContainers.length;
+		mTrainingContainers = trainingContainers;
+		mTestingContainers = testingContainers;
 		
 		// Make sure the network is prepared for data's feature vector length
 		prepareNetwork(trainingContainers);
 		
+		mTrainingSamples = 0;
+		mTrainingNanos = 0;
+		mBestSnapshot = null;
+		if(mBatchSize > 0 && !mAsynchronous)
+			initMiniBatches();
+		
 		// Determine the correct number of threads
 		int numThreads = Runtime.getRuntime().availableProcessors();
 		numThreads = Math.min(numThreads, maxThreads);
 		
 		// testing set < training set, so may need less threads
 		int numTrainingTasks = Math.min(numThreads, trainingContainers.length);
-		int numTestingTasks = Math.min(numThreads, trainingContainers.length);
+		int numTestingTasks = Math.min(numThreads, testingContainers.length);
 		
 		// Arrays to keep track of the tasks
 		mTrainingTasks = new TrainingTask[numTrainingTasks];
@@ -286,19 +798,131 @@ public class MlpTrainer {
 		mTrainingTaskFutures = new ArrayList<Future<Mlp>>();
 		mTestingTaskFutures = new ArrayList<Future<Double>>();
 		
-		// We'll need these to propagate changes in mlp to each task
-		int totalTasks = mTrainingTasks.length + mTestingTasks.length;
-		mTaskLayers = new Mlp.Layer[totalTasks];
-		
-		// this is the number of threads we need to allocate
-		numThreads = Math.max(numTrainingTasks, numTestingTasks);
+		// this is the number of threads we need to allocate. Pipelined
+		// testing runs alongside training, so it needs threads of its own.
+		numThreads = mPipelined 
+				? numTrainingTasks + numTestingTasks
+				: Math.max(numTrainingTasks, numTestingTasks);
 		mExecutor = Executors.newFixedThreadPool(numThreads);
+		mProgressExecutor = Executors.newSingleThreadScheduledExecutor();
 		
 		// Tell the user what we'll be using
 		mOut.println("Using " + numThreads + " threads!");
 
 		initTrainingCallables(trainingContainers);
 		initTestingCallables(testingContainers);
+		
+		mResumed = (mResume != null);
+		if(mResumed) {
+			restoreCheckpoint(mResume);
+			mResume = null;
+		}
+		
+		mValidation = null;
+		mLastSampledError = Double.NaN;
+		mLastFullEpoch = mEpoch - 1;
+		if(mValidationSize > 0 && !mPipelined) {
+			try {
+				long start = System.currentTimeMillis();
+				mValidation = new ValidationSample(testingContainers, 
+												   mValidationSize, 
+												   new Random());
+				mOut.println("Sampled " + mValidation.size() 
+						+ " validation windows. " 
+						+ (System.currentTimeMillis() - start) + "ms.");
+			} catch(IDataContainer.DataUnavailableException e) {
+				e.printStackTrace();
+				mOut.println("Sampling failed, evaluating every epoch.");
+			}
+		}
+	}
+	
+	/**
+	 * Restores the trainer's state from a checkpoint.
+	 * @param checkpoint
+	 */
+	private void restoreCheckpoint(TrainingCheckpoint checkpoint) {
+		FrozenMlp weights = checkpoint.getWeights();
+		if(weights.size() != mMainNet.size())
+			throw new IllegalArgumentException(
+					"The checkpoint doesn't match the mlp.");
+		Mlp.Layer current = mMainNet.getHead();
+		for(int l=0; current != null; l++) {
+			double[] layerWeights = weights.getWeights(l);
+			if(layerWeights.length != current.getWeights().length)
+				throw new IllegalArgumentException(
+						"The checkpoint doesn't match the mlp.");
+			// Training tasks share these arrays, so copy in place
+			System.arraycopy(layerWeights, 0, 
+							 current.getWeights(), 0, 
+							 layerWeights.length);
+			current = current.next();
+		}
+		mOptimizer.setState(checkpoint.getOptimizerState());
+		mShuffleRandom = checkpoint.getShuffleRandom();
+		mEpoch = checkpoint.getEpoch();
+		mLearningRate = checkpoint.getLearningRate();
+		mLastError = checkpoint.getLastError();
+		mLastDeltaError = checkpoint.getLastDeltaError();
+		mWeightsVersion++;
+		mOut.println("Resuming from epoch " + mEpoch 
+				+ " (error " + mLastError + ").");
+	}
+	
+	/**
+	 * Snapshots the training state and writes it in the background. The 
+	 * snapshot is taken between epochs, when nothing is writing the weights.
+	 * If the last checkpoint is still being written, this one is skipped.
+	 */
+	private void checkpoint() {
+		if(mCheckpointFuture != null && !mCheckpointFuture.isDone()) {
+			mOut.println("Still writing the last checkpoint, skipping.");
+			return;
+		}
+		final TrainingCheckpoint checkpoint = 
+				new TrainingCheckpoint(mEpoch, 
+									   mLearningRate, 
+									   mLastError, 
+									   mLastDeltaError, 
+									   mMainNet.freeze(), 
+									   mOptimizer.getState(), 
+									   mShuffleRandom);
+		final File file = mCheckpointFile;
+		if(mCheckpointExecutor == null)
+			mCheckpointExecutor = Executors.newSingleThreadExecutor();
+		mCheckpointFuture = mCheckpointExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					long start = System.currentTimeMillis();
+					checkpoint.write(file);
+					mOut.println("Checkpointed epoch " 
+							+ checkpoint.getEpoch() + " to " + file + ". " 
+							+ (System.currentTimeMillis() - start) + "ms.");
+				} catch(IOException e) {
+					mOut.println("Checkpoint failed: " + e.getMessage());
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Waits for any checkpoint still being written and releases its thread.
+	 */
+	private void finishCheckpoint() {
+		if(mCheckpointExecutor == null)
+			return;
+		try {
+			if(mCheckpointFuture != null)
+				mCheckpointFuture.get();
+		} catch(InterruptedException e) {
+			e.printStackTrace();
+		} catch(ExecutionException e) {
+			e.printStackTrace();
+		}
+		mCheckpointExecutor.shutdown();
+		mCheckpointExecutor = null;
+		mCheckpointFuture = null;
 	}
 	
 	/**
@@ -307,28 +931,22 @@ public class MlpTrainer {
 	 */
 	private void initTrainingCallables(IDataContainer[] trainingContainers) {
 		mTrainingEcs = new ExecutorCompletionService<Mlp>(mExecutor);
-		// Determine how to split the data among threads
-		int trainContainersPerThread = 
-				trainingContainers.length / mTrainingTasks.length;
-		
-		mOut.println("trainContainersPerThread: " + trainContainersPerThread);
 		
 		// Create the training callables
+		Mlp[] threadNets = new Mlp[mTrainingTasks.length];
 		for(int i=0; i < mTrainingTasks.length; i++) {
-			// thread's offset in data container list
-			int cOffset = trainContainersPerThread * i;
-			int cEndIdx = cOffset + trainContainersPerThread;
-			
-			// Get subset of data for thread
-			IDataContainer[] subset =  
-					new IDataContainer[trainContainersPerThread];
-			List<IDataContainer> subsetList = Arrays.asList(trainingContainers);
-			subsetList.subList(cOffset, cEndIdx).toArray(subset);
-			
-			// Create the task with it's own copy of the network
-			Mlp threadNet = new Mlp(mMainNet);
-			mTrainingTasks[i] = new TrainingTask(threadNet, subset);
+			// Create the task with it's own view of the network. It shares
+			// mMainNet's weights and keeps only private deltaWeights.
+			Mlp threadNet = new Mlp(mMainNet, true);
+			mTrainingTasks[i] = new TrainingTask(threadNet);
+			threadNets[i] = threadNet;
 		}
+		
+		// We'll need these to accumulate changes from each training task
+		mReducer = new WeightReducer(mMainNet, threadNets, mExecutor, 
+									 mTrainingTasks.length);
+		mOptimizer.init(mMainNet);
+		mReducer.setOptimizer(mOptimizer);
 	}
 	
 	/**
@@ -337,33 +955,17 @@ public class MlpTrainer {
 	 */
 	private void initTestingCallables(IDataContainer[] testingContainers) {
 		mTestingEcs = new ExecutorCompletionService<Double>(mExecutor);
-		int testContainersPerThread = 
-				testingContainers.length / mTestingTasks.length;
-		
-		mOut.println("testContainersPerThread: " + testContainersPerThread);
 		
 		// Create the testing callables
 		for(int i=0; i < mTestingTasks.length; i++) {
-			// thread's offset in data container list
-			int cOffset = testContainersPerThread * i;
-			int cEndIdx = cOffset + testContainersPerThread;
-			
-			// Get subset of data for thread
-			IDataContainer[] subset =  
-					new IDataContainer[testContainersPerThread];
-			List<IDataContainer> subsetList = Arrays.asList(testingContainers);
-			subsetList.subList(cOffset, cEndIdx).toArray(subset);
-			
-			// Create the task with it's own copy of the network
-			Mlp threadNet = new Mlp(mMainNet);
-			mTestingTasks[i] = new TestingTask(threadNet, subset);
+			// Testing tasks share the read-only snapshot, no copy needed
+			mTestingTasks[i] = new TestingTask();
 		}
 	}
 	
 	/**
-	 * Compiles the average deltaWeights from slave threads into the
-	 * main network and propagates the new weights back to all slave threads,
-	 * training and testing.
+	 * Compiles the average deltaWeights over every sample the training
+	 * tasks processed into the main network, whose weights they share.
 	 * @throws ExecutionException
 	 * @throws InterruptedException
 	 */
@@ -373,70 +975,181 @@ public class MlpTrainer {
 		mOut.println(" Compiling results...");
 		long compilingStart = System.currentTimeMillis();
 		
-		Mlp.Layer current;
-		current = mMainNet.getHead();
+		// Make sure every task finished cleanly, against current weights
+		for(Future<Mlp> future : mTrainingTaskFutures)
+			future.get();
+		int numData = 0;
+		for(TrainingTask task : mTrainingTasks) {
+			if(task.mVersion != mWeightsVersion)
+				throw new IllegalStateException(
+						"A training task used stale weights.");
+			numData += task.numDataProcessed;
+		}
+		if(numData == 0)
+			throw new IllegalStateException("No training data was read.");
+		
+		// Average deltaWeights from TrainingTasks into mMainNet and adjust 
+		// its weights, in parallel over ranges of weights. The tasks share
+		// the weights, so there's nothing to copy back.
+		mReducer.reduce(1D / numData, mLearningRate);
+		mWeightsVersion++;
+		
+		long elapsed = System.currentTimeMillis() - compilingStart;
+		mOut.println("Finished compiling results. " 
+						+ elapsed + "ms (reduce " 
+						+ (mReducer.getReduceNanos() / 1000) + "us, weights v"
+						+ mWeightsVersion + ").");
+	}
+
+	/**
+	 * Allocates the buffers for mini-batch training.
+	 */
+	private void initMiniBatches() {
+		int numInputs = mMainNet.getHead().getNumInputs();
+		int numOutputs = mMainNet.getTail().size();
+		int capacity = mBatchSize * SHUFFLE_BUFFER_BATCHES;
+		
+		mBatchGradient = new BatchGradient(mMainNet, mBatchSize);
+		mShuffleFeatures = new double[capacity * numInputs];
+		mShuffleLabels = new double[capacity * numOutputs];
+		mShuffleOrder = new int[capacity];
+		mBatchFeatures = new double[mBatchSize * numInputs];
+		mBatchLabels = new double[mBatchSize * numOutputs];
+	}
+	
+	/**
+	 * Runs one epoch of mini-batch training on mMainNet. Containers are 
+	 * visited in a new random order each epoch, and their windows are 
+	 * shuffled within a buffer of SHUFFLE_BUFFER_BATCHES batches, so
+	 * batches mix windows from many songs without holding the whole
+	 * training set in memory.
+	 * @throws IDataContainer.DataUnavailableException
+	 */
+	private void trainMiniBatches() 
+			throws IDataContainer.DataUnavailableException
+	{
+		long trainingStart = System.currentTimeMillis();
+		long phaseStart = System.nanoTime();
+		int numInputs = mMainNet.getHead().getNumInputs();
+		int numOutputs = mMainNet.getTail().size();
+		int capacity = mShuffleOrder.length;
+		int numData = 0;
+		mNumUpdates = 0;
+		
+		List<IDataContainer> order = 
+				new ArrayList<IDataContainer>(Arrays.asList(mTrainingContainers));
+		Collections.shuffle(order, mShuffleRandom);
 		
-		// Reset threadLayers to head... and set phasers to stun!
-		int numTrainingTasks = mTrainingTaskFutures.size();
-		int numTestingTasks = mTrainingTaskFutures.size();
-		for(int i=0; i < numTrainingTasks; i++) {
-			Mlp mlp = mTrainingTaskFutures.get(i).get();
-			mTaskLayers[i] = mlp.getHead();
+		int buffered = 0;
+		int processed = 0;
+		for(IDataContainer dataContainer : order) {
+			try {
+				dataContainer.open();
+				while(dataContainer.hasNext()) {
+					LabeledData datum = dataContainer.next();
+					System.arraycopy(datum.getFeatures(), 0, 
+									 mShuffleFeatures, buffered * numInputs, 
+									 numInputs);
+					System.arraycopy(datum.getLabels(), 0, 
+									 mShuffleLabels, buffered * numOutputs, 
+									 numOutputs);
+					buffered++;
+					numData++;
+					if(buffered == capacity) {
+						trainShuffled(buffered);
+						buffered = 0;
+					}
+				}
+			} finally {
+				try { dataContainer.close(); } catch(Exception e) {}
+			}
+			processed++;
+			updateTrainingStatus((double) processed / mNumTrainingContainers);
 		}
-		for(int i=0; i < mTestingTasks.length; i++) {
-			Mlp mlp = mTestingTasks[i].getMlp();
-			mTaskLayers[numTrainingTasks + i] = mlp.getHead();
+		trainShuffled(buffered);
+		
+		long phaseNanos = System.nanoTime() - phaseStart;
+		mTrainingSamples += numData;
+		mTrainingNanos += phaseNanos;
+		mOut.println(); // to clear status line
+		long elapsed = System.currentTimeMillis() - trainingStart;
+		mOut.println("Epoch Training complete. " + mNumUpdates 
+						+ " updates. " + elapsed + "ms. " 
+						+ samplesPerSecond(numData, phaseNanos) 
+						+ " samples/s.");
+	}
+	
+	/**
+	 * Shuffles the first count windows in the shuffle buffer and updates
+	 * mMainNet once per batch of them.
+	 * @param count
+	 */
+	private void trainShuffled(int count) {
+		int numInputs = mMainNet.getHead().getNumInputs();
+		int numOutputs = mMainNet.getTail().size();
+		
+		// Fisher-Yates
+		for(int i=0; i < count; i++)
+			mShuffleOrder[i] = i;
+		for(int i=count - 1; i > 0; i--) {
+			int j = mShuffleRandom.nextInt(i + 1);
+			int tmp = mShuffleOrder[i];
+			mShuffleOrder[i] = mShuffleOrder[j];
+			mShuffleOrder[j] = tmp;
 		}
 		
-		// Adjust weights from head to tail and copy to all threads
-		while(current != null) {
-			
-			// For each node in this layer
-			for(int i=0; i < current.size(); i++) {
-				
-				double[] deltaWeights = current.getDeltaWeightsAt(i);
-				
-				// Accumulate deltaWeights from TrainingTasks
-				// (but not from TestingTasks!!)
-				for(int j=0; j < numTrainingTasks; j++) {
-					double[] threadDeltaWeights = 
-							mTaskLayers[j].getDeltaWeightsAt(i);
-					Vector.scale(threadDeltaWeights, 1D /mTrainingTaskFutures.size() );
-					Vector.addTo(threadDeltaWeights, deltaWeights);
-					
-					// Reset deltaWeights for this node in the task
-					Arrays.fill(threadDeltaWeights, 0);
-				}
-				
-				
-				// Scale deltaWeights in-place
-				Vector.scale(deltaWeights, mLearningRate);
-				double[] weights = current.getWeightsAt(i);
-				// Adjust weights in-place
-				Vector.addTo(deltaWeights, weights);
-				
-				// Copy weights for this node to both Training and TestingTasks
-				for(int j=0; j < mTaskLayers.length; j++) {
-					double[] threadWeights = mTaskLayers[j].getWeightsAt(i);
-					System.arraycopy(weights, 0, 
-									 threadWeights, 0, 
-									 weights.length);
-				}
-				
-				// Reset deltaWeights for this node in main
-				Arrays.fill(deltaWeights, 0);
+		for(int start=0; start < count; start += mBatchSize) {
+			int rows = Math.min(mBatchSize, count - start);
+			for(int r=0; r < rows; r++) {
+				int src = mShuffleOrder[start + r];
+				System.arraycopy(mShuffleFeatures, src * numInputs, 
+								 mBatchFeatures, r * numInputs, 
+								 numInputs);
+				System.arraycopy(mShuffleLabels, src * numOutputs, 
+								 mBatchLabels, r * numOutputs, 
+								 numOutputs);
 			}
-			
-			// Advance all layers
+			mBatchGradient.accumulate(mBatchFeatures, mBatchLabels, rows);
+			applyDeltaWeights(mMainNet, 1D / rows);
+			mNumUpdates++;
+		}
+	}
+	
+	/**
+	 * Adjusts an mlp's weights in-place with the optimizer by its scaled 
+	 * deltaWeights and resets the deltaWeights. Asynchronous tasks call 
+	 * this concurrently, so the optimizer's state is raced on just like the
+	 * weights are.
+	 * @param mlp
+	 * @param scale - e.g. 1 / the number of samples summed
+	 */
+	private void applyDeltaWeights(Mlp mlp, double scale) {
+		applyDeltaWeights(mlp, mOptimizer, scale, mLearningRate);
+	}
+	
+	/**
+	 * Adjusts an mlp's weights in-place with an optimizer by its scaled 
+	 * deltaWeights and resets the deltaWeights.
+	 * @param mlp
+	 * @param optimizer - initialized for mlp
+	 * @param scale - e.g. 1 / the number of samples summed
+	 * @param rateScale - multiplies the optimizer's learning rate
+	 */
+	public static void applyDeltaWeights(Mlp mlp, 
+										 IOptimizer optimizer, 
+										 double scale, 
+										 double rateScale) 
+	{
+		optimizer.step();
+		Mlp.Layer current = mlp.getHead();
+		for(int l=0; current != null; l++) {
+			double[] deltaWeights = current.getDeltaWeights();
+			Vector.scale(deltaWeights, scale);
+			optimizer.update(l, current.getWeights(), deltaWeights, 
+							 0, deltaWeights.length, rateScale);
+			Arrays.fill(deltaWeights, 0);
 			current = current.next();
-			for(int i=0; i < mTaskLayers.length; i++) {
-				mTaskLayers[i] = mTaskLayers[i].next();
-			}
 		}
-		
-		long elapsed = System.currentTimeMillis() - compilingStart;
-		mOut.println("Finished compiling results." 
-						+ elapsed + "ms.");
 	}
 
 	/**
@@ -448,37 +1161,40 @@ public class MlpTrainer {
 		long trainingStart = System.currentTimeMillis();
 		
 		// Submit threads to executor
+		mNextTrainingContainer.set(0);
+		long phaseStart = System.nanoTime();
 		for(int i=0; i < mTrainingTasks.length; i++) {
 			mTrainingTasks[i].onSubmit();
 			mTrainingEcs.submit(mTrainingTasks[i]);
 		}
 		
-		// Wait for them all to finish
-		long sleepTime = SLEEP_TIME_START;
-		while(mTrainingTaskFutures.size() < mTrainingTasks.length) {
-			Future<Mlp> future = 
-					mTrainingEcs.poll(1, TimeUnit.NANOSECONDS);
-			
-			if(future != null) {
-				sleepTime = SLEEP_TIME_START;
-				mTrainingTaskFutures.add(future);
-			} else {
-				sleepTime += SLEEP_TIME_INCREMENT;
-				sleepTime = Math.min(sleepTime, SLEEP_TIME_MAX);
-			}
-			
-			// Update the progress bar
-			double processed = 0;
-			for(TrainingTask task : mTrainingTasks) {
-				processed += task.getNumProcessed();
-			}
-			updateTrainingStatus(processed / mNumTrainingContainers);
-			Thread.sleep(sleepTime);
+		// Wait for them all to finish. take() returns as soon as each task
+		// completes, so the epoch moves on the moment the last one does.
+		ProgressReporter reporter = new ProgressReporter(true);
+		reporter.start();
+		try {
+			while(mTrainingTaskFutures.size() < mTrainingTasks.length)
+				mTrainingTaskFutures.add(mTrainingEcs.take());
+		} finally {
+			reporter.stop();
 		}
+		long phaseNanos = System.nanoTime() - phaseStart;
+		updateTrainingStatus(trainingProgress());
 		
 		mOut.println(); // to clear status line
 		long elapsed = System.currentTimeMillis() - trainingStart;
-		mOut.println("Epoch Training complete. " + elapsed + "ms.");
+		int numData = 0;
+		for(TrainingTask task : mTrainingTasks)
+			numData += task.numDataProcessed;
+		mTrainingSamples += numData;
+		mTrainingNanos += phaseNanos;
+		mOut.println("Epoch Training complete. " + elapsed + "ms. " 
+				+ samplesPerSecond(numData, phaseNanos) + " samples/s.");
+		for(int i=0; i < mTrainingTasks.length; i++) {
+			TrainingTask task = mTrainingTasks[i];
+			printWorkerTime(i, task.getNumProcessed(), 
+							task.mBusyNanos, phaseNanos);
+		}
 	}
 	
 	/**
@@ -490,15 +1206,52 @@ public class MlpTrainer {
 	 */
 	private void computeError(IDataContainer[] testingContainers) 
 			throws InterruptedException, ExecutionException 
+	{
+		computeError(testingContainers, 1);
+	}
+	
+	/**
+	 * Computes the error on the testing dataset, spreading its change over
+	 * the epochs since the last full evaluation.
+	 * @param testingContainers
+	 * @param epochs - the number of epochs since the last full evaluation
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	private void computeError(IDataContainer[] testingContainers, int epochs) 
+			throws InterruptedException, ExecutionException 
 	{
 		mOut.println("Computing error...");
 		long testingStart = System.currentTimeMillis();
 		
-		double newError;
+		startTest(mMainNet.freeze());
+		recordError(finishTest(true), epochs);
+		mLastFullEpoch = mEpoch;
 		
-		// Compute delta Error
-		newError = test();
-		mLastDeltaError = newError - mLastError;
+		long elapsed = System.currentTimeMillis() - testingStart;
+		mOut.println("Error Computed (" + mLastError + "%)." 
+				+ elapsed + "ms.");
+	}
+	
+	/**
+	 * Updates the error tracking vars with the error of the last tested
+	 * snapshot, and remembers the snapshot if it's the best so far.
+	 * @param newError
+	 */
+	private void recordError(double newError) {
+		recordError(newError, 1);
+	}
+	
+	/**
+	 * Updates the error tracking vars with the error of the last tested
+	 * snapshot, taken some epochs after the one before.
+	 * @param newError
+	 * @param epochs - the number of epochs between the errors, over which
+	 * 			mLastDeltaError is averaged
+	 */
+	private void recordError(double newError, int epochs) {
+		// Compute delta Error, per epoch
+		mLastDeltaError = (newError - mLastError) / epochs;
 		
 		// Update error tracking vars
 		mLastError = newError;
@@ -509,87 +1262,240 @@ public class MlpTrainer {
 		mLastDeltaErrorStr = "" 
 				+ (Math.round(lastDeltaErrorPercent * 10000D) / 10000D);
 		
-		long elapsed = System.currentTimeMillis() - testingStart;
-		mOut.println("Error Computed (" + mLastError + "%)." 
-				+ elapsed + "ms.");
+		if(mBestSnapshot == null || newError < mBestError) {
+			mBestError = newError;
+			mBestSnapshot = mSnapshot;
+		}
 	}
 	
 	/**
-	 * Runs one iteration of testing with TestingTask callables.
-	 * @return
+	 * Estimates the current weights' error from the validation sample, and
+	 * runs a full evaluation every mFullEvaluationInterval epochs, or when 
+	 * the estimate suggests training may be about to stop: it barely 
+	 * changed, the target is within its confidence interval, or this is the
+	 * last epoch.
+	 * @param minDeltaError
+	 * @param maxEpochs
+	 * @return whether the full testing set was evaluated
 	 * @throws InterruptedException
 	 * @throws ExecutionException
 	 */
-	private double test() throws InterruptedException, ExecutionException 
+	private boolean validate(double minDeltaError, int maxEpochs) 
+			throws InterruptedException, ExecutionException 
 	{
+		long start = System.currentTimeMillis();
+		double[] estimate = mValidation.estimate(mMainNet.freeze());
+		double sampledDelta = estimate[0] - mLastSampledError;
+		mLastSampledError = estimate[0];
+		mOut.println("Sampled error " + estimate[0] + " +/- " + estimate[1] 
+				+ " (95%, " + mValidation.size() + " windows). " 
+				+ (System.currentTimeMillis() - start) + "ms.");
+		
+		boolean full = (mEpoch + 1) % mFullEvaluationInterval == 0 
+				|| Math.abs(sampledDelta) < minDeltaError 
+				|| estimate[0] - estimate[1] <= mTargetError 
+				|| mEpoch >= maxEpochs;
+		if(full)
+			computeError(mTestingContainers, mEpoch - mLastFullEpoch);
+		return full;
+	}
+	
+	/**
+	 * Copies the weights of the best tested snapshot into mMainNet.
+	 */
+	private void restoreBestSnapshot() {
+		if(mBestSnapshot == null || mBestSnapshot == mSnapshot)
+			return;
+		Mlp.Layer current = mMainNet.getHead();
+		for(int l=0; current != null; l++) {
+			double[] weights = mBestSnapshot.getWeights(l);
+			System.arraycopy(weights, 0, 
+							 current.getWeights(), 0, 
+							 weights.length);
+			current = current.next();
+		}
+		mLastError = mBestError;
+		mOut.println("Keeping the best snapshot (error " 
+						+ mBestError + ").");
+	}
+	
+	/**
+	 * Submits TestingTask callables to test a snapshot without waiting for
+	 * them.
+	 * @param snapshot
+	 */
+	private void startTest(FrozenMlp snapshot) {
+		// Testing tasks all read from one snapshot of the weights
+		mSnapshot = snapshot;
+		mTestingTaskFutures.clear();
+		
 		// Submit testing threads to executor
+		mNextTestingContainer.set(0);
+		mTestingStart = System.nanoTime();
 		for(int i=0; i < mTestingTasks.length; i++) {
 			mTestingTasks[i].onSubmit();
 			mTestingEcs.submit(mTestingTasks[i]);
 		}
-		
+	}
+	
+	/**
+	 * Waits for the TestingTasks submitted by startTest() to finish.
+	 * @param showProgress - whether to draw the testing progress bar
+	 * @return the mean square error of the snapshot
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	private double finishTest(boolean showProgress) 
+			throws InterruptedException, ExecutionException 
+	{
 		// Wait for them all to finish
-		long sleepTime = SLEEP_TIME_START;
-		while(mTestingTaskFutures.size() < mTestingTasks.length) {
-			Future<Double> future = 
-					mTestingEcs.poll(1, TimeUnit.NANOSECONDS);
-			
-			if(future != null) {
-				sleepTime = SLEEP_TIME_START;
-				mTestingTaskFutures.add(future);
-			} else {
-				sleepTime += SLEEP_TIME_INCREMENT;
-				sleepTime = Math.min(sleepTime, SLEEP_TIME_MAX);
-			}
-			
-			// Update the progress bar
-			double processed = 0;
-			for(TestingTask task : mTestingTasks) {
-				processed += task.getNumProcessed();
-			}
-			updateTestingStatus(processed / mNumTestingContainers);
-			Thread.sleep(sleepTime);
+		ProgressReporter reporter = null;
+		if(showProgress) {
+			reporter = new ProgressReporter(false);
+			reporter.start();
+		}
+		try {
+			while(mTestingTaskFutures.size() < mTestingTasks.length)
+				mTestingTaskFutures.add(mTestingEcs.take());
+		} finally {
+			if(reporter != null)
+				reporter.stop();
+		}
+		long phaseNanos = System.nanoTime() - mTestingStart;
+		if(showProgress) {
+			updateTestingStatus(testingProgress());
+			mOut.println();
 		}
 		
-		double n = 0;
+		// Pool the squared residuals of every window
+		double quantity = 0;
 		double sum = 0;
-		// Reset threadLayers to head... and set phasers to stun!
 		for(int i=0; i < mTestingTaskFutures.size(); i++) {
-			Double result = mTestingTaskFutures.get(i).get();
-			if(result != null) {
-				sum += result.doubleValue();
-				n++;
-			}
+			sum += mTestingTaskFutures.get(i).get().doubleValue();
 		}
 		
-		mOut.println();
+		for(int i=0; i < mTestingTasks.length; i++) {
+			TestingTask task = mTestingTasks[i];
+			quantity += task.mQuantity;
+			printWorkerTime(i, (int) task.getNumProcessed(), 
+							task.mBusyNanos, phaseNanos);
+		}
 		
 		// Return the average
-		return sum / n;
+		mTestSum = sum;
+		mTestQuantity = quantity;
+		return sum / quantity;
+	}
+	
+	/**
+	 * Returns the fraction of training containers processed this epoch.
+	 * @return
+	 */
+	private double trainingProgress() {
+		double processed = 0;
+		for(TrainingTask task : mTrainingTasks) {
+			processed += task.getNumProcessed();
+		}
+		return processed / mNumTrainingContainers;
+	}
+	
+	/**
+	 * Returns the fraction of testing containers processed this epoch.
+	 * @return
+	 */
+	private double testingProgress() {
+		double processed = 0;
+		for(TestingTask task : mTestingTasks) {
+			processed += task.getNumProcessed();
+		}
+		return processed / mNumTestingContainers;
+	}
+	
+	/**
+	 * Returns a throughput rounded to a whole number of samples per second.
+	 * @param numData
+	 * @param nanos
+	 * @return
+	 */
+	private static long samplesPerSecond(long numData, long nanos) {
+		return Math.round(numData / (nanos / 1e9));
 	}
 	
 	/**
-	 * A Callable that returns the mean square error of this task's slave
-	 * network on this task's assigned testing subset. For proper results, 
-	 * one must update this task's slave network between each run.
+	 * Prints how long a worker spent busy in a phase and how long it sat
+	 * idle waiting for the others.
+	 * @param worker
+	 * @param numContainers - the containers it processed
+	 * @param busyNanos
+	 * @param phaseNanos - the phase's wall-clock time
+	 */
+	private void printWorkerTime(int worker, int numContainers, 
+								 long busyNanos, long phaseNanos) 
+	{
+		long idleNanos = Math.max(phaseNanos - busyNanos, 0);
+		mOut.println("  Worker " + worker + ": " 
+				+ numContainers + " containers | busy " 
+				+ (busyNanos / 1000000) + "ms | idle " 
+				+ (idleNanos / 1000000) + "ms");
+	}
+	
+	/**
+	 * Redraws the training or testing progress bar every PROGRESS_INTERVAL
+	 * ms on the progress executor while a phase's tasks run. Once stop()
+	 * returns, it won't print again.
+	 */
+	private class ProgressReporter implements Runnable {
+		private boolean mTraining;
+		private boolean mStopped = false;
+		private ScheduledFuture<?> mFuture;
+		
+		/**
+		 * Constructs a ProgressReporter.
+		 * @param training - true to report training, false for testing
+		 */
+		ProgressReporter(boolean training) {
+			mTraining = training;
+		}
+		
+		public void start() {
+			mFuture = mProgressExecutor.scheduleAtFixedRate(this, 
+								PROGRESS_INTERVAL, PROGRESS_INTERVAL, 
+								TimeUnit.MILLISECONDS);
+		}
+		
+		public synchronized void stop() {
+			mStopped = true;
+			mFuture.cancel(false);
+		}
+		
+		@Override
+		public synchronized void run() {
+			if(mStopped)
+				return;
+			if(mTraining)
+				updateTrainingStatus(trainingProgress());
+			else
+				updateTestingStatus(testingProgress());
+		}
+	} // End ProgressReporter
+	
+	/**
+	 * A Callable that returns the sum of squared residuals of the trainer's 
+	 * current snapshot on the testing containers it takes from the shared
+	 * queue. The snapshot is immutable, so every TestingTask shares it.
 	 */
 	private class TestingTask implements Callable<Double> {
-		Mlp mMlp;
-		IDataContainer[] mTestingContainers;
 		AtomicInteger numContainersProcessed;
+		// The number of residuals summed in the last run
+		double mQuantity;
+		// Time spent in the last run
+		long mBusyNanos;
 		
 		/**
 		 * Constructs a TestingTask.
-		 * @param mlp - in most cases, a deep copy of a main Mlp to test
-		 * @param subset - the data subset to test on
 		 */
-		TestingTask(Mlp mlp, IDataContainer[] subset) {
-			mMlp = mlp;
-			mTestingContainers = subset;
+		TestingTask() {
 			numContainersProcessed = new AtomicInteger(0);
-		}
-		public Mlp getMlp() {
-			return mMlp;
 		}
 
 		public double getNumProcessed() {
@@ -602,13 +1508,19 @@ public class MlpTrainer {
 
 		@Override
 		public Double call() throws Exception {
+			long start = System.nanoTime();
 			numContainersProcessed.set(0);
 			double sumSqrResiduals = 0;
 			int trials = 0;
 			int targetsLength = 0;
+			FrozenMlp snapshot = mSnapshot;
+			Mlp.Workspace workspace = snapshot.newWorkspace();
 			
-			for(IDataContainer dataContainer : mTestingContainers) {
-			
+			int idx;
+			while((idx = mNextTestingContainer.getAndIncrement()) 
+					< mTestingContainers.length) 
+			{
+				IDataContainer dataContainer = mTestingContainers[idx];
 				LabeledData datum;
 				try {
 					dataContainer.open();
@@ -619,14 +1531,15 @@ public class MlpTrainer {
 							
 							double[] targets = datum.getLabels();
 							double[] feats = datum.getFeatures();
-							double[] outputs = mMainNet.evaluate(feats, true);
+							double[] outputs = 
+									snapshot.evaluate(feats, workspace);
 							
 							targetsLength = targets.length;
 							
-							double[] diff = Vector.sub(targets, outputs);
-							//mOut.println("diff: " + Arrays.toString(diff));
-							sumSqrResiduals += Vector.dot(diff, diff);
-							//mOut.println(sumSqrResiduals);
+							for(int j=0; j < targetsLength; j++) {
+								double diff = targets[j] - outputs[j];
+								sumSqrResiduals += diff * diff;
+							}
 							trials++;
 						
 					}
@@ -638,34 +1551,40 @@ public class MlpTrainer {
 				
 				numContainersProcessed.addAndGet(1);
 			}
-			double quantity = trials * targetsLength;
+			mQuantity = trials * targetsLength;
+			mBusyNanos = System.nanoTime() - start;
 			
-			return new Double(sumSqrResiduals / quantity);
+			return new Double(sumSqrResiduals);
 		}
 	} // End TestingTask
 	
 	/**
-	 * A Callable that returns an Mlp with deltaWeights trained on this task's
-	 * assigned training subset. For proper results, one must update this
-	 * task's slave network between each run.
+	 * A Callable that returns an Mlp with deltaWeights summed over the 
+	 * training containers this task takes from the shared queue. Its mlp
+	 * shares the main network's weights.
 	 * @author Michael DuBois
 	 *
 	 */
 	private class TrainingTask implements Callable<Mlp> {
 
 		Mlp mMlp;
-		IDataContainer[] mDataContainers;
 		AtomicInteger numContainersProcessed;
 		int numDataProcessed = 0;
+		// Back-propagates one sample at a time in preallocated buffers
+		BatchGradient mGradient;
+		// The version of the shared weights this task last trained against
+		int mVersion;
+		// Time spent in the last run
+		long mBusyNanos;
 		
 		/**
 		 * Constructs a TrainingTask.
-		 * @param mlp - in most cases, a deep copy of a main Mlp to train.
-		 * @param subset
+		 * @param mlp - in most cases, a view of the main Mlp that shares
+		 * 			its weights
 		 */
-		TrainingTask(Mlp mlp, IDataContainer[] subset) {
+		TrainingTask(Mlp mlp) {
 			mMlp = mlp;
-			mDataContainers = subset;
+			mGradient = new BatchGradient(mlp, 1);
 			numContainersProcessed = new AtomicInteger(0);
 		}
 		
@@ -687,26 +1606,36 @@ public class MlpTrainer {
 		
 		@Override
 		public Mlp call() throws Exception {
+			long start = System.nanoTime();
 			numContainersProcessed.set(0);
 			numDataProcessed = 0;
-			for(IDataContainer dataContainer : mDataContainers){
+			// Acquire the latest published weights
+			mVersion = mWeightsVersion;
+			int updateEvery = Math.max(mBatchSize, 1);
+			int pending = 0;
+			int idx;
+			while((idx = mNextTrainingContainer.getAndIncrement()) 
+					< mTrainingContainers.length) 
+			{
+				IDataContainer dataContainer = mTrainingContainers[idx];
 				LabeledData datum;
 				try {
 					dataContainer.open();
 					while(dataContainer.hasNext()) {
 						
 							datum = dataContainer.next();
-						
-							double[] outputs = 
-									mMlp.evaluate(datum.getFeatures(), true);
-							double[] targets = datum.getLabels();
 							
-		
+							// Forward, blames and deltaWeights update in
+							// one pass, without allocating
+							mGradient.accumulate(datum.getFeatures(), 
+												 datum.getLabels(), 1);
 							numDataProcessed++;
-							computeBlames(outputs, targets);
-							updateDeltaWeights();
 							
-						
+							// Hogwild: write straight to the shared weights
+							if(mAsynchronous && ++pending == updateEvery) {
+								applyDeltaWeights(mMlp, 1D / pending);
+								pending = 0;
+							}
 					}
 					numContainersProcessed.addAndGet(1);
 				} catch (Exception e) {
@@ -718,139 +1647,14 @@ public class MlpTrainer {
 				
 			}
 			
-			// Compute the average deltaWeight across all cases
-			averageDeltaWeights();
-			
+			// Otherwise deltaWeights are left summed. adjustWeights averages
+			// them over every task's samples.
+			if(mAsynchronous && pending > 0)
+				applyDeltaWeights(mMlp, 1D / pending);
+			mBusyNanos = System.nanoTime() - start;
 			return mMlp;
 		}
 		
-		/**
-		 * Computes and assigns a blame factor vector for each layer
-		 * In academic papers this is often denoted with a lowercase delta
-		 * TODO don't assume output is the only layer with activation function
-		 * @param outputs
-		 * @param targets
-		 */
-		private void computeBlames(double[] outputs, double[] targets) {
-			// For output nodes, the blame is just assumed to be the 
-			// difference between outputs and targets
-			double[] nextBlames = Vector.sub(targets, outputs);
-			double[] currentBlames;
-			
-			int layerIdx = mMlp.size() - 1;
-			Mlp.Layer current = mMlp.getTail();
-
-			// Get the output layer's activation function
-			Mlp.IActivationFunction act = 
-					current.getActivationFunction();
-			
-			// Back-propagate from tail
-			while(current != null) {
-				currentBlames = current.getBlames();
-				
-				// For each node in this layer
-				for(int i=0; i < outputs.length; i++) {
-					
-					
-					// The errorContrib is a weighted sum of this nodes 
-					// contribution towards the error in the next layer
-					double errorContrib = 0;
-					
-					// For each node in the next layer (forward layer)
-					for(int j=0; j < nextBlames.length; j++) {
-						// If this is a hidden layer
-						if(current.next() != null) {
-							double[] weights = current.next()
-													.getWeightsAt(j);
-							
-							// add in blame from next layer node 
-							// weighted by weight applied by that node 
-							// to current layer node's output
-							errorContrib += weights[i] * nextBlames[j];
-						
-						
-						} else { // If this is an output layer, 
-							// no weights to apply
-							errorContrib += nextBlames[j];
-						}
-					}
-					
-					// Compute and modify delta
-					//currentBlames[i] += outputs[i]*(1-outputs[i])*errorContrib;
-					currentBlames[i] += act.dydk(i, outputs, i)*errorContrib;
-				}
-				
-				// This layers inputs are previous-layer's outputs
-				outputs = current.getLastInputs();
-				nextBlames = currentBlames;
-				
-				// Moving on (backwards)
-				current = current.prev();
-				layerIdx--;
-			}
-		}
-		
-		/**
-		 * Computes the new delta weights for each node in each layer
-		 * Uses a running average.
-		 */
-		private void updateDeltaWeights() {
-			// Update deltaWeights from head to tail
-			Mlp.Layer current = mMlp.getHead();
-			while(current != null) {
-				
-				double[] currentLayerBlames = current.getBlames();
-				double[] inputs = current.getLastInputs();
-			
-				// For each node in this layer
-				for(int i=0; i < current.size(); i++) {
-					// Compute new weights according to:
-					// weights' = weights + blame[i]*inputs
-					// Note: We don't scale by learning rate here,
-					// that is done when we compile it all in the main thread
-					double blame = currentLayerBlames[i];
-					double[] scaledInputs = Vector.scaled(inputs, blame);
-					double[] deltaWeights = current.getDeltaWeightsAt(i);
-					double[] cachedDeltaWeights = 
-							new double[deltaWeights.length];
-					System.arraycopy(deltaWeights, 0, cachedDeltaWeights, 0, deltaWeights.length);
-					// AddTo performs addition in-place for performance
-					Vector.addTo(scaledInputs, deltaWeights);
-				}
-				
-				// Reset blames
-				Arrays.fill(currentLayerBlames, 0);
-				
-				// Moving on
-				current = current.next();
-			}
-		}
-		
-		/**
-		 * Divides the delta weights by the numDataProcessed
-		 */
-		private void averageDeltaWeights() {
-			
-			if(numDataProcessed > 0) {
-				
-				// Divide delta-weights by numDataProcessed
-				Mlp.Layer current = mMlp.getHead();
-				while(current != null) {
-				
-					// For each node in this layer
-					for(int i=0; i < current.size(); i++) {
-						double[] deltaWeights = current.getDeltaWeightsAt(i);
-						// AddTo performs addition in-place for performance
-						double alpha = (1D/(double)numDataProcessed);
-						Vector.scale(deltaWeights, alpha);
-					}
-					
-					// Moving on
-					current = current.next();
-				}
-			}
-		}
-		
 	} // End TrainingTask
 	
 	
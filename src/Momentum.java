@@ -0,0 +1,54 @@
+/**
+ * Gradient ascent with classical momentum. Each weight moves by a velocity
+ * that decays by the momentum factor and accumulates the gradient, so
+ * consistent directions speed up and oscillating ones cancel out.
+ * @author Michael DuBois
+ *
+ */
+public class Momentum extends AbstractOptimizer {
+	
+	public static final double DEFAULT_LEARNING_RATE = .1;
+	public static final double DEFAULT_MOMENTUM = .9;
+	
+	private static final int VELOCITY = 0;
+	
+	private final double mMomentum;
+	
+	/**
+	 * Constructs a Momentum optimizer.
+	 * @param learningRate
+	 * @param momentum - the fraction of the velocity kept per update, 
+	 * 			in [0, 1)
+	 */
+	public Momentum(double learningRate, double momentum) {
+		super(learningRate, 1);
+		if(momentum < 0 || momentum >= 1)
+			throw new IllegalArgumentException(
+					"momentum must be in [0, 1).");
+		mMomentum = momentum;
+	}
+	
+	@Override
+	public void update(int layer, 
+					   double[] weights, 
+					   double[] gradient, 
+					   int start, 
+					   int end, 
+					   double rateScale) 
+	{
+		double rate = getLearningRate() * rateScale;
+		double[] velocity = mState[VELOCITY];
+		int offset = mOffsets[layer];
+		for(int i=start; i < end; i++) {
+			double v = mMomentum * velocity[offset + i] + gradient[i];
+			velocity[offset + i] = v;
+			weights[i] += rate * v;
+		}
+	}
+	
+	@Override
+	public String getName() {
+		return MOMENTUM + " (rate " + getLearningRate() 
+				+ ", momentum " + mMomentum + ")";
+	}
+}
@@ -0,0 +1,534 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An inference-only, int8 post-training quantization of a trained Mlp.
+ * Each weight row is quantized with its own scale, and each layer's inputs
+ * are quantized with a scale calibrated from sample data, so every node is
+ * an integer dot product with int32 accumulation followed by one rescale.
+ * The model is a quarter the size of the double-precision network.
+ * Immutable, so it may be shared by any number of threads.
+ *
+ * On-disk layout (big-endian):
+ *   int    magic ('M','L','P','Q')
+ *   int    version
+ *   int    numLayers
+ *   for each layer:
+ *     int    numNodes
+ *     int    numInputs
+ *     int    activation type (one of the MlpFile.ACTIVATION_* constants)
+ *     double activation alpha
+ *     float  input scale
+ *     float  row scales[numNodes]
+ *     byte   weights[numNodes * numInputs], row-major
+ *
+ * @author Michael DuBois
+ *
+ */
+public final class QuantizedMlp {
+
+	public static final int MAGIC = 0x4D4C5051;
+	public static final int VERSION = 1;
+
+	// Sizes in bytes of the file and layer headers
+	private static final int FILE_HEADER_SIZE = 3 * 4;
+	private static final int LAYER_HEADER_SIZE = 3 * 4 + 8 + 4;
+
+	// Largest magnitude of a quantized value
+	private static final int QUANT_MAX = 127;
+	// Default number of windows used to calibrate input scales
+	public static final int DEFAULT_CALIBRATION_SAMPLES = 10000;
+
+	private final int mNumInputs;
+	private final int[] mLayerSizes;
+	private final int[] mLayerInputs;
+	// Quantized weights per layer as [nodeIdx * layerInputs + inputIdx]
+	private final byte[][] mWeights;
+	// Per-row weight scales: weight ~= quantized weight * row scale
+	private final float[][] mRowScales;
+	// Per-layer input scales: input ~= quantized input * input scale
+	private final float[] mInputScales;
+	private final Mlp.IActivationFunction[] mActivationFunctions;
+
+	/**
+	 * Constructs a quantized model directly from its arrays, which it takes
+	 * ownership of.
+	 */
+	private QuantizedMlp(int[] layerSizes,
+						 int[] layerInputs,
+						 byte[][] weights,
+						 float[][] rowScales,
+						 float[] inputScales,
+						 Mlp.IActivationFunction[] funcs)
+	{
+		mLayerSizes = layerSizes;
+		mLayerInputs = layerInputs;
+		mWeights = weights;
+		mRowScales = rowScales;
+		mInputScales = inputScales;
+		mActivationFunctions = funcs;
+		mNumInputs = (layerSizes.length > 0) ? layerInputs[0] : 0;
+	}
+
+	/**
+	 * Quantizes a double-precision snapshot, calibrating each layer's input
+	 * scale from the range of values it sees on sample data.
+	 * @param mlp - the network to quantize
+	 * @param calibrationContainers - containers to draw sample data from
+	 * @param maxSamples - the most windows to calibrate with
+	 * @return
+	 * @throws IDataContainer.DataUnavailableException
+	 */
+	public static QuantizedMlp quantize(FrozenMlp mlp,
+										IDataContainer[] calibrationContainers,
+										int maxSamples)
+		throws IDataContainer.DataUnavailableException
+	{
+		int numLayers = mlp.size();
+
+		// Find the largest magnitude each layer's inputs reach
+		double[] inputMax = new double[numLayers];
+		Mlp.Workspace workspace = mlp.newWorkspace();
+		int samples = 0;
+		for(IDataContainer container : calibrationContainers) {
+			if(samples >= maxSamples)
+				break;
+			try {
+				container.open();
+				while(container.hasNext() && samples < maxSamples) {
+					double[] feats = container.next().getFeatures();
+					mlp.evaluate(feats, workspace);
+					inputMax[0] = Math.max(inputMax[0], maxAbs(feats));
+					for(int l=1; l < numLayers; l++) {
+						inputMax[l] = Math.max(inputMax[l],
+								maxAbs(workspace.getBuffer(l - 1)));
+					}
+					samples++;
+				}
+			} finally {
+				try { container.close(); } catch(Exception e) {}
+			}
+		}
+		if(samples == 0)
+			throw new IllegalArgumentException(
+					"No calibration data was available.");
+
+		int[] layerSizes = new int[numLayers];
+		int[] layerInputs = new int[numLayers];
+		byte[][] weights = new byte[numLayers][];
+		float[][] rowScales = new float[numLayers][];
+		float[] inputScales = new float[numLayers];
+		Mlp.IActivationFunction[] funcs =
+				new Mlp.IActivationFunction[numLayers];
+
+		for(int l=0; l < numLayers; l++) {
+			int numNodes = mlp.getLayerSize(l);
+			int numInputs = mlp.getLayerInputs(l);
+			double[] layerWeights = mlp.getWeights(l);
+			layerSizes[l] = numNodes;
+			layerInputs[l] = numInputs;
+			weights[l] = new byte[layerWeights.length];
+			rowScales[l] = new float[numNodes];
+			inputScales[l] = scaleFor(inputMax[l]);
+			funcs[l] = mlp.getActivationFunction(l);
+
+			// Each row gets its own scale so small rows keep precision
+			for(int n=0; n < numNodes; n++) {
+				int offset = n * numInputs;
+				double rowMax = 0;
+				for(int k=0; k < numInputs; k++)
+					rowMax = Math.max(rowMax,
+									  Math.abs(layerWeights[offset + k]));
+				float scale = scaleFor(rowMax);
+				rowScales[l][n] = scale;
+				quantize(layerWeights, offset, weights[l], offset,
+						 numInputs, 1f / scale);
+			}
+		}
+
+		return new QuantizedMlp(layerSizes, layerInputs, weights,
+								rowScales, inputScales, funcs);
+	}
+
+	/**
+	 * Returns the model's evaluation of this input. Allocates its own
+	 * buffers, so it's safe to call from any thread.
+	 * @param inputs - the feature vector to evaluate
+	 * @return
+	 */
+	public double[] evaluate(double[] inputs) {
+		return evaluate(inputs, newWorkspace()).clone();
+	}
+
+	/**
+	 * Returns the model's evaluation of this input, computed in the given
+	 * workspace's buffers without allocating.
+	 * @param inputs - the feature vector to evaluate
+	 * @param workspace - buffers from newWorkspace(), owned by this thread
+	 * @return the output buffer in workspace, which is overwritten by the
+	 * 			next call that uses the same workspace
+	 */
+	public double[] evaluate(double[] inputs, Workspace workspace) {
+		if(inputs.length != mNumInputs)
+			throw new IllegalArgumentException(
+					"Expected " + mNumInputs + " inputs, got "
+					+ inputs.length);
+
+		double[] outputs = inputs;
+		for(int l=0; l < mLayerSizes.length; l++) {
+			int numInputs = mLayerInputs[l];
+			byte[] quantizedInputs = workspace.mInputs[l];
+			float inputScale = mInputScales[l];
+			quantize(outputs, 0, quantizedInputs, 0,
+					 numInputs, 1f / inputScale);
+
+			byte[] weights = mWeights[l];
+			float[] rowScales = mRowScales[l];
+			outputs = workspace.mOutputs[l];
+			for(int i=0; i < mLayerSizes[l]; i++) {
+				int acc = Vector.dot(weights, i * numInputs,
+									 quantizedInputs, 0,
+									 numInputs);
+				outputs[i] = acc * (rowScales[i] * inputScale);
+			}
+
+			Mlp.IActivationFunction func = mActivationFunctions[l];
+			if(func != null)
+				func.apply(outputs, outputs, outputs.length);
+		}
+		return outputs;
+	}
+
+	/**
+	 * Returns a new Workspace sized for this model's layers.
+	 * @return
+	 */
+	public Workspace newWorkspace() {
+		return new Workspace(mLayerInputs, mLayerSizes);
+	}
+
+	/**
+	 * Writes this model to a file in the quantized model format.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeToFile(File file) throws IOException {
+		int numLayers = mLayerSizes.length;
+		long size = FILE_HEADER_SIZE;
+		for(int l=0; l < numLayers; l++) {
+			size += LAYER_HEADER_SIZE
+					+ 4L * mLayerSizes[l]
+					+ (long) mWeights[l].length;
+		}
+		if(size > Integer.MAX_VALUE)
+			throw new IOException("Model is too large to write.");
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) size);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(numLayers);
+		for(int l=0; l < numLayers; l++) {
+			Mlp.IActivationFunction func = mActivationFunctions[l];
+			buffer.putInt(mLayerSizes[l]);
+			buffer.putInt(mLayerInputs[l]);
+			buffer.putInt(MlpFile.activationType(func));
+			buffer.putDouble(MlpFile.activationAlpha(func));
+			buffer.putFloat(mInputScales[l]);
+			for(float scale : mRowScales[l])
+				buffer.putFloat(scale);
+			buffer.put(mWeights[l]);
+		}
+		buffer.flip();
+
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			FileChannel channel = out.getChannel();
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(true);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Loads a model from a file in the quantized model format by
+	 * memory-mapping it.
+	 * @param file
+	 * @return
+	 * @throws IOException if the file is not a model this version can read
+	 */
+	public static QuantizedMlp loadFromFile(File file) throws IOException {
+		String name = file.getPath();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			MappedByteBuffer buffer =
+				channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if(buffer.remaining() < FILE_HEADER_SIZE 
+					|| buffer.getInt() != MAGIC)
+				throw new IOException(
+						"Not a quantized Mlp model file: " + name);
+			int version = buffer.getInt();
+			if(version != VERSION)
+				throw new IOException("Unsupported quantized Mlp model "
+						+ "version " + version + ": " + name);
+
+			// Every layer needs at least its header, so the count can't be 
+			// more than the bytes left allow
+			int numLayers = buffer.getInt();
+			if(numLayers <= 0
+					|| (long) LAYER_HEADER_SIZE * numLayers 
+						> buffer.remaining())
+				throw new IOException("Corrupt Mlp model file: " + name);
+			int[] layerSizes = new int[numLayers];
+			int[] layerInputs = new int[numLayers];
+			byte[][] weights = new byte[numLayers][];
+			float[][] rowScales = new float[numLayers][];
+			float[] inputScales = new float[numLayers];
+			Mlp.IActivationFunction[] funcs =
+					new Mlp.IActivationFunction[numLayers];
+
+			for(int l=0; l < numLayers; l++) {
+				if(buffer.remaining() < LAYER_HEADER_SIZE)
+					throw new IOException(
+							"Truncated Mlp model file: " + name);
+				layerSizes[l] = buffer.getInt();
+				layerInputs[l] = buffer.getInt();
+				int type = buffer.getInt();
+				double alpha = buffer.getDouble();
+				funcs[l] = MlpFile.newActivationFunction(type, alpha);
+				inputScales[l] = buffer.getFloat();
+				if(!isValidScale(inputScales[l]))
+					throw new IOException("Corrupt Mlp model file: " + name
+							+ " (input scale " + inputScales[l] + ")");
+
+				long length = (long) layerSizes[l] * layerInputs[l];
+				if(layerSizes[l] <= 0 || layerInputs[l] <= 0
+						|| (l > 0 && layerInputs[l] != layerSizes[l - 1])
+						|| 4L * layerSizes[l] + length > buffer.remaining())
+					throw new IOException(
+							"Corrupt Mlp model file: " + name);
+
+				rowScales[l] = new float[layerSizes[l]];
+				buffer.asFloatBuffer().get(rowScales[l]);
+				buffer.position(buffer.position() + 4 * layerSizes[l]);
+				for(int j=0; j < layerSizes[l]; j++) {
+					if(!isValidScale(rowScales[l][j]))
+						throw new IOException("Corrupt Mlp model file: "
+								+ name + " (row scale " + rowScales[l][j] 
+								+ ")");
+				}
+				weights[l] = new byte[(int) length];
+				buffer.get(weights[l]);
+			}
+
+			return new QuantizedMlp(layerSizes, layerInputs, weights,
+									rowScales, inputScales, funcs);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns whether a scale read from a file can be used. Anything else
+	 * would turn every output it touches into NaN or infinity.
+	 * @param scale
+	 * @return
+	 */
+	private static boolean isValidScale(float scale) {
+		return scale != 0 && !Float.isNaN(scale) && !Float.isInfinite(scale);
+	}
+
+	/**
+	 * Prints a comparison of this model's accuracy and throughput against
+	 * the double-precision Mlp.evaluate() of the network it was built from.
+	 * All data is loaded into memory first so throughput isn't I/O bound.
+	 * @param reference - the network this model was quantized from
+	 * @param containers - the data to compare over
+	 * @param out
+	 * @throws IDataContainer.DataUnavailableException
+	 */
+	public void report(FrozenMlp reference,
+					   IDataContainer[] containers,
+					   PrintStream out)
+		throws IDataContainer.DataUnavailableException
+	{
+		List<LabeledData> data = new ArrayList<LabeledData>();
+		for(IDataContainer container : containers) {
+			try {
+				container.open();
+				while(container.hasNext())
+					data.add(container.next());
+			} finally {
+				try { container.close(); } catch(Exception e) {}
+			}
+		}
+		if(data.isEmpty()) {
+			out.println("No data to report on.");
+			return;
+		}
+
+		Mlp mlp = reference.toMlp();
+		Workspace workspace = newWorkspace();
+		double doubleSqrErr = 0, quantSqrErr = 0, maxDeviation = 0;
+		int doubleCorrect = 0, quantCorrect = 0, outputs = 0;
+		for(LabeledData datum : data) {
+			double[] labels = datum.getLabels();
+			double[] expected = mlp.evaluate(datum.getFeatures());
+			double[] actual = evaluate(datum.getFeatures(), workspace);
+			for(int i=0; i < labels.length; i++) {
+				doubleSqrErr += sqr(labels[i] - expected[i]);
+				quantSqrErr += sqr(labels[i] - actual[i]);
+				maxDeviation = Math.max(maxDeviation,
+										Math.abs(expected[i] - actual[i]));
+				if((expected[i] >= .5) == (labels[i] >= .5))
+					doubleCorrect++;
+				if((actual[i] >= .5) == (labels[i] >= .5))
+					quantCorrect++;
+				outputs++;
+			}
+		}
+
+		// Run each a few times so the JIT has compiled both paths
+		double doubleRate = 0, quantRate = 0;
+		for(int pass=0; pass < 3; pass++) {
+			long start = System.nanoTime();
+			double sink = 0;
+			for(LabeledData datum : data)
+				sink += mlp.evaluate(datum.getFeatures())[0];
+			doubleRate = data.size() * 1e9 / (System.nanoTime() - start);
+
+			start = System.nanoTime();
+			for(LabeledData datum : data)
+				sink += evaluate(datum.getFeatures(), workspace)[0];
+			quantRate = data.size() * 1e9 / (System.nanoTime() - start);
+			if(Double.isNaN(sink))
+				out.println("NaN outputs!");
+		}
+
+		out.println("Windows: " + data.size());
+		out.println("           MSE          accuracy     windows/s");
+		out.println("double:    "
+				+ MlpTrainer.paddedCell(format(doubleSqrErr / outputs), 13)
+				+ MlpTrainer.paddedCell(
+						format((double) doubleCorrect / outputs), 13)
+				+ Math.round(doubleRate));
+		out.println("int8:      "
+				+ MlpTrainer.paddedCell(format(quantSqrErr / outputs), 13)
+				+ MlpTrainer.paddedCell(
+						format((double) quantCorrect / outputs), 13)
+				+ Math.round(quantRate));
+		out.println("Max deviation from double outputs: " + maxDeviation);
+	}
+
+	/**
+	 * Quantizes a model, saves it and reports on it.
+	 * Usage: QuantizedMlp path/to/model path/to/output data.mfc [...]
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3) {
+			System.out.println("Usage: QuantizedMlp path/to/model "
+					+ "path/to/output data.mfc [data.mfc ...]");
+			System.exit(1);
+		}
+		FrozenMlp reference = FrozenMlp.loadFromFile(new File(args[0]));
+		IDataContainer[] containers = new IDataContainer[args.length - 2];
+		for(int i=2; i < args.length; i++)
+			containers[i - 2] = new LabeledDataContainer(new File(args[i]));
+
+		QuantizedMlp quantized = quantize(reference, containers,
+										  DEFAULT_CALIBRATION_SAMPLES);
+		File output = new File(args[1]);
+		quantized.writeToFile(output);
+		System.out.println("Wrote quantized model to " + output.getPath()
+				+ " (" + output.length() + " bytes)");
+
+		quantized = loadFromFile(output);
+		quantized.report(reference, containers, System.out);
+	}
+
+	/**
+	 * Quantizes length values from src into dst, rounding to nearest and
+	 * saturating at +/-QUANT_MAX.
+	 * @param src
+	 * @param srcOffset
+	 * @param dst
+	 * @param dstOffset
+	 * @param length
+	 * @param invScale - 1 / the scale of a quantized unit
+	 */
+	private static void quantize(double[] src, int srcOffset,
+								 byte[] dst, int dstOffset,
+								 int length, float invScale)
+	{
+		for(int i=0; i < length; i++) {
+			int q = Math.round((float) src[srcOffset + i] * invScale);
+			q = Math.max(-QUANT_MAX, Math.min(QUANT_MAX, q));
+			dst[dstOffset + i] = (byte) q;
+		}
+	}
+
+	/**
+	 * Returns the scale that maps a range of +/-max onto +/-QUANT_MAX.
+	 * @param max
+	 * @return
+	 */
+	private static float scaleFor(double max) {
+		// An all-zero range still needs a usable, non-zero scale
+		if(max <= 0)
+			return 1f;
+		return (float) (max / QUANT_MAX);
+	}
+
+	private static double maxAbs(double[] values) {
+		double max = 0;
+		for(double value : values)
+			max = Math.max(max, Math.abs(value));
+		return max;
+	}
+
+	private static double sqr(double x) {
+		return x * x;
+	}
+
+	private static String format(double x) {
+		return "" + (Math.round(x * 1000000D) / 1000000D);
+	}
+
+	/**
+	 * Preallocated per-layer buffers for QuantizedMlp.evaluate(inputs,
+	 * workspace). Not thread-safe; each thread needs its own.
+	 * @author Michael DuBois
+	 *
+	 */
+	public static class Workspace {
+
+		private final byte[][] mInputs;
+		private final double[][] mOutputs;
+
+		/**
+		 * Constructs a Workspace.
+		 * @param layerInputs - the length of the inputs to each layer
+		 * @param layerSizes - the number of nodes in each layer
+		 */
+		Workspace(int[] layerInputs, int[] layerSizes) {
+			mInputs = new byte[layerInputs.length][];
+			mOutputs = new double[layerSizes.length][];
+			for(int i=0; i < layerSizes.length; i++) {
+				mInputs[i] = new byte[layerInputs[i]];
+				mOutputs[i] = new double[layerSizes[i]];
+			}
+		}
+
+	} // End Workspace
+}
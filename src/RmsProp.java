@@ -0,0 +1,55 @@
+/**
+ * RMSProp. Each weight's step is divided by a running root mean square of
+ * its gradients, so every weight moves at about the same rate whatever the
+ * scale of its gradient.
+ * @author Michael DuBois
+ *
+ */
+public class RmsProp extends AbstractOptimizer {
+	
+	public static final double DEFAULT_LEARNING_RATE = .01;
+	public static final double DEFAULT_DECAY = .9;
+	public static final double EPSILON = 1e-8;
+	
+	private static final int MEAN_SQUARE = 0;
+	
+	private final double mDecay;
+	
+	/**
+	 * Constructs an RmsProp optimizer.
+	 * @param learningRate
+	 * @param decay - the fraction of the mean square kept per update, 
+	 * 			in [0, 1)
+	 */
+	public RmsProp(double learningRate, double decay) {
+		super(learningRate, 1);
+		if(decay < 0 || decay >= 1)
+			throw new IllegalArgumentException("decay must be in [0, 1).");
+		mDecay = decay;
+	}
+	
+	@Override
+	public void update(int layer, 
+					   double[] weights, 
+					   double[] gradient, 
+					   int start, 
+					   int end, 
+					   double rateScale) 
+	{
+		double rate = getLearningRate() * rateScale;
+		double[] meanSquare = mState[MEAN_SQUARE];
+		int offset = mOffsets[layer];
+		for(int i=start; i < end; i++) {
+			double g = gradient[i];
+			double s = mDecay * meanSquare[offset + i] + (1 - mDecay) * g * g;
+			meanSquare[offset + i] = s;
+			weights[i] += rate * g / (Math.sqrt(s) + EPSILON);
+		}
+	}
+	
+	@Override
+	public String getName() {
+		return RMS_PROP + " (rate " + getLearningRate() 
+				+ ", decay " + mDecay + ")";
+	}
+}
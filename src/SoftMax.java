@@ -8,8 +8,8 @@ import java.util.Arrays;
  */
 public class SoftMax implements Mlp.IActivationFunction {
 	
-	private double mAlpha;
-	private StandardLogistic mLogistic;
+	private final double mAlpha;
+	private final StandardLogistic mLogistic;
 	
 	public SoftMax(double alpha) {
 		mAlpha = alpha;
@@ -17,41 +17,43 @@ public class SoftMax implements Mlp.IActivationFunction {
 		mLogistic = new StandardLogistic(mAlpha);
 	}
 	
+	/**
+	 * Returns the steepness parameter of this function.
+	 * @return
+	 */
+	public double getAlpha() {
+		return mAlpha;
+	}
+	
 	/**
 	 * A overflow-safe soft-max function adapted from
 	 * http://lingpipe-blog.com/2009/03/17/softmax-without-overflow/
 	 */
 	public double[] y(double[] outputs) {
+		double[] ps = new double[outputs.length];
+		apply(outputs, ps, outputs.length);
+		return ps;
+	}
+	
+	/**
+	 * Computes a single element of y(outputs) without allocating. 
+	 * This is O(n), so use apply() to activate a whole layer.
+	 */
+	@Override
+	public double y(double[] outputs, int i) {
 		
 		// If the output vector is length 1, devolve to logistic function
 		if(outputs.length == 1) {
-			return mLogistic.y(outputs);
+			return mLogistic.y(outputs, i);
 		}
 		
 		double a = Vector.max(outputs);
 		
 		double Z = 0.0;
-		for (int i = 0; i < outputs.length; ++i) {
-			//System.out.println("i: " + i );
-			double exponent =  mAlpha * (outputs[i] - a);
-			//System.out.println("exponent: " + exponent);
-			double result = Math.exp( exponent );
-			//System.out.println("Adding " + result +  " to Z");
-		    Z += result;
-		}
-		
-		System.out.println("Z:" + Z);
+		for (int j = 0; j < outputs.length; ++j)
+			Z += Math.exp( mAlpha * (outputs[j] - a) );
 		
-		double[] ps = new double[outputs.length];
-		for (int i = 0; i < outputs.length; ++i) 
-				ps[i] = Math.exp( mAlpha * (outputs[i] - a) )/Z;
-		
-		return ps;
-	}
-	
-	@Override
-	public double y(double[] outputs, int i) {
-		return y(outputs)[i];
+		return Math.exp( mAlpha * (outputs[i] - a) )/Z;
 	}
 	
 	@Override
@@ -73,7 +75,51 @@ public class SoftMax implements Mlp.IActivationFunction {
 	
 	@Override
 	public double dydk(int k, double[] outputs, int i) {	
-		return dydk(k, outputs)[i];
+		// If the output vector is length 1, devolve to logistic function
+		if(outputs.length == 1) {
+			return mLogistic.dydk(k, outputs, i);
+		}
+		
+		double kronDelta = (i == k) ? 1 : 0;
+		return (kronDelta - outputs[i]) * outputs[k];
+	}
+	
+	/**
+	 * The overflow-safe soft-max of y(outputs) in two linear passes.
+	 * The exponentials are cached in dst, so src and dst may be the same.
+	 */
+	@Override
+	public void apply(double[] src, double[] dst, int len) {
+		
+		// If the output vector is length 1, devolve to logistic function
+		if(len == 1) {
+			mLogistic.apply(src, dst, len);
+			return;
+		}
+		
+		double a = src[0];
+		for (int i = 1; i < len; ++i)
+			a = Math.max(a, src[i]);
+		
+		double Z = 0.0;
+		for (int i = 0; i < len; ++i) {
+			dst[i] = Math.exp( mAlpha * (src[i] - a) );
+			Z += dst[i];
+		}
+		
+		double invZ = 1D / Z;
+		for (int i = 0; i < len; ++i)
+			dst[i] *= invZ;
+	}
+	
+	/**
+	 * The diagonal of the soft-max jacobian, dy_i/dk_i = (1 - y_i) * y_i,
+	 * which is also the logistic derivative when len == 1.
+	 */
+	@Override
+	public void dydk(double[] outputs, double[] dst, int len) {
+		for(int i=0; i < len; i++)
+			dst[i] = (1 - outputs[i]) * outputs[i];
 	}
 	
 	/**
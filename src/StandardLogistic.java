@@ -5,24 +5,31 @@
  */
 public class StandardLogistic implements Mlp.IActivationFunction {
 
-	double mAlpha;
+	private final double mAlpha;
 	
 	public StandardLogistic(double alpha) {
 		mAlpha = alpha;
 	}
 	
+	/**
+	 * Returns the steepness parameter of this function.
+	 * @return
+	 */
+	public double getAlpha() {
+		return mAlpha;
+	}
+	
 	@Override
 	public double[] y(double[] outputs) {
 		double[] vals = new double[outputs.length];
-		// Overflow-safe equivalent of standard logistic function
-		for(int i=0; i < outputs.length; i++)
-			vals[i] = .5D * (1D + Math.tanh(mAlpha*.5D*outputs[0]));
+		apply(outputs, vals, outputs.length);
 		return vals;
 	}
 
 	@Override
 	public double y(double[] outputs, int i) {
-		return y(outputs)[i];
+		// Overflow-safe equivalent of standard logistic function
+		return .5D * (1D + Math.tanh(mAlpha*.5D*outputs[i]));
 	}
 
 	@Override
@@ -37,5 +44,19 @@ public class StandardLogistic implements Mlp.IActivationFunction {
 	public double dydk(int k, double[] outputs, int i) {
 		return (1-outputs[i])*outputs[k];
 	}
+	
+	@Override
+	public void apply(double[] src, double[] dst, int len) {
+		// Overflow-safe equivalent of standard logistic function
+		double halfAlpha = mAlpha*.5D;
+		for(int i=0; i < len; i++)
+			dst[i] = .5D * (1D + Math.tanh(halfAlpha*src[i]));
+	}
+	
+	@Override
+	public void dydk(double[] outputs, double[] dst, int len) {
+		for(int i=0; i < len; i++)
+			dst[i] = (1-outputs[i])*outputs[i];
+	}
 
 }
@@ -0,0 +1,33 @@
+import java.util.Random;
+
+/**
+ * Test that a per-sample training step, as MlpTrainer's TrainingTasks run
+ * it, allocates nothing. See AllocationMeter.
+ * @author Michael DuBois
+ *
+ */
+public class TestBackpropAllocation {
+
+	public static void main(String[] args) throws Exception {
+		Mlp mlp = AllocationMeter.newNetwork();
+		Random random = new Random(0);
+		final double[][] windows = AllocationMeter.newWindows(random, 1024);
+		final double[][] labels = new double[windows.length][1];
+		for(double[] label : labels)
+			label[0] = random.nextInt(2);
+		final BatchGradient gradient = new BatchGradient(mlp, 1);
+
+		new AllocationMeter() {
+			@Override
+			protected double run(int numSamples) {
+				// The sum of squared errors
+				double sum = 0;
+				for(int i=0; i < numSamples; i++) {
+					int w = i % windows.length;
+					sum += gradient.accumulate(windows[w], labels[w], 1);
+				}
+				return sum;
+			}
+		}.check("back-propagation");
+	}
+}
@@ -0,0 +1,169 @@
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test that distributed training over localhost sockets makes the same
+ * full-batch updates as one MlpTrainer. Some synthetic mfc files are written
+ * to a temporary directory, and a coordinator in this JVM trains a copy of
+ * an mlp with workers started as separate processes, just as they would be
+ * from the command line:
+ *   java -cp classpath HasVocals --worker localhost:port --shard i/n dir
+ * A local MlpTrainer trains another copy on the same shards' files. Exits
+ * with status 1 if a worker fails or the weights differ by more than
+ * rounding.
+ * @author Michael DuBois
+ *
+ */
+public class TestDistributedTraining {
+
+	public static final int FEATURE_LENGTH = 39;
+	public static final int NUM_CONTAINERS = 8;
+	public static final int WINDOWS_PER_CONTAINER = 200;
+	public static final int MAX_EPOCHS = 5;
+	public static final int NUM_WORKERS = 2;
+	public static final int WORKER_THREADS = 2;
+	public static final long WORKER_TIMEOUT_SECONDS = 120;
+	public static final double TOLERANCE = 1e-9;
+
+	public static void main(String[] args) throws Exception {
+		final PrintStream quiet = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {}
+		});
+
+		File dir = Files.createTempDirectory("distributed").toFile();
+		Random random = new Random(0);
+		List<File> files = new ArrayList<File>();
+		for(int i=0; i < NUM_CONTAINERS; i++)
+			files.add(writeContainer(random, new File(dir, i + ".mfc")));
+
+		Mlp local = HasVocals.newNeuralNetwork(HasVocals.DEFAULT_HIDDEN_SIZES);
+		local.evaluate(new double[FEATURE_LENGTH]);
+		Mlp distributed = new Mlp(local);
+
+		// Find a free port
+		ServerSocket probe = new ServerSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+
+		Process[] workers = new Process[NUM_WORKERS];
+		File[] logs = new File[NUM_WORKERS];
+		String java = System.getProperty("java.home")
+				+ File.separator + "bin" + File.separator + "java";
+		for(int w=0; w < NUM_WORKERS; w++) {
+			logs[w] = new File(dir, "worker" + w + ".log");
+			ProcessBuilder builder = new ProcessBuilder(java,
+					"-cp", System.getProperty("java.class.path"),
+					"HasVocals",
+					"--worker", "localhost:" + port,
+					"--shard", w + "/" + NUM_WORKERS,
+					"-t", String.valueOf(WORKER_THREADS),
+					dir.getPath());
+			builder.redirectErrorStream(true);
+			builder.redirectOutput(logs[w]);
+			workers[w] = builder.start();
+		}
+
+		TrainingCoordinator coordinator =
+				new TrainingCoordinator(distributed, quiet);
+		int distributedEpochs;
+		try {
+			distributedEpochs =
+					coordinator.trainMlp(port, NUM_WORKERS, 0, MAX_EPOCHS);
+		} finally {
+			for(int w=0; w < NUM_WORKERS; w++) {
+				if(!workers[w].waitFor(WORKER_TIMEOUT_SECONDS,
+									   TimeUnit.SECONDS))
+					workers[w].destroy();
+			}
+		}
+		for(int w=0; w < NUM_WORKERS; w++) {
+			if(workers[w].isAlive() || workers[w].exitValue() != 0) {
+				System.out.println("FAILED: worker " + w + " didn't finish. "
+						+ "See " + logs[w].getPath());
+				System.exit(1);
+			}
+		}
+
+		// Train locally on the same files, split as each worker splits them
+		List<IDataContainer> training = new ArrayList<IDataContainer>();
+		List<IDataContainer> testing = new ArrayList<IDataContainer>();
+		for(int w=0; w < NUM_WORKERS; w++) {
+			List<File> shardFiles = HasVocals.selectShard(
+					files, Integer.MAX_VALUE, w, NUM_WORKERS);
+			int trainingSize = (int) (.75 * shardFiles.size());
+			for(int i=0; i < shardFiles.size(); i++) {
+				IDataContainer container =
+						new LabeledDataContainer(shardFiles.get(i));
+				if(i < trainingSize)
+					training.add(container);
+				else
+					testing.add(container);
+			}
+		}
+		MlpTrainer trainer = new MlpTrainer(local, quiet);
+		int localEpochs = trainer.trainMlp(
+				training.toArray(new IDataContainer[training.size()]),
+				testing.toArray(new IDataContainer[testing.size()]),
+				0, MAX_EPOCHS, WORKER_THREADS);
+
+		double maxDiff = 0;
+		Mlp.Layer a = local.getHead();
+		Mlp.Layer b = distributed.getHead();
+		while(a != null) {
+			double[] wa = a.getWeights();
+			double[] wb = b.getWeights();
+			for(int i=0; i < wa.length; i++)
+				maxDiff = Math.max(maxDiff, Math.abs(wa[i] - wb[i]));
+			a = a.next();
+			b = b.next();
+		}
+		double errorDiff =
+				Math.abs(trainer.getLastError() - coordinator.getLastError());
+		System.out.println("epochs: " + localEpochs + " local, "
+				+ distributedEpochs + " distributed");
+		System.out.println("max weight difference: " + maxDiff
+				+ ", error difference: " + errorDiff);
+
+		if(localEpochs != distributedEpochs || maxDiff > TOLERANCE
+				|| errorDiff > TOLERANCE)
+		{
+			System.out.println("FAILED: distributed training diverged.");
+			System.exit(1);
+		}
+		for(File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+		System.out.println("PASSED");
+	}
+
+	/**
+	 * Writes random windows, labeled by the sign of their first feature,
+	 * to a file in LabeledData's format.
+	 * @param random
+	 * @param file
+	 * @return the file
+	 * @throws Exception
+	 */
+	private static File writeContainer(Random random, File file)
+			throws Exception
+	{
+		List<LabeledData> data = new ArrayList<LabeledData>();
+		// LabeledDataContainer doesn't read a file's last line
+		for(int i=0; i < WINDOWS_PER_CONTAINER + 1; i++) {
+			double[] features = new double[FEATURE_LENGTH];
+			for(int j=0; j < features.length; j++)
+				features[j] = random.nextGaussian();
+			double label = (features[0] > 0) ? 1 : 0;
+			data.add(new LabeledData(features, new double[] {label}));
+		}
+		return LabeledData.writeToFile(data, file, false);
+	}
+}
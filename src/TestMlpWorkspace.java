@@ -0,0 +1,30 @@
+import java.util.Random;
+
+/**
+ * Test that scoring windows through an Mlp.Workspace allocates nothing.
+ * See AllocationMeter.
+ * @author Michael DuBois
+ *
+ */
+public class TestMlpWorkspace {
+
+	public static void main(String[] args) throws Exception {
+		final Mlp mlp = AllocationMeter.newNetwork();
+		final double[][] windows =
+				AllocationMeter.newWindows(new Random(0), 1024);
+		final Mlp.Workspace workspace = mlp.newWorkspace();
+
+		new AllocationMeter() {
+			@Override
+			protected double run(int numSamples) {
+				double sum = 0;
+				for(int i=0; i < numSamples; i++) {
+					double[] outputs = mlp.evaluate(
+							windows[i % windows.length], workspace);
+					sum += outputs[0];
+				}
+				return sum;
+			}
+		}.check("scoring");
+	}
+}
@@ -0,0 +1,283 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/**
+ * Everything MlpTrainer needs to carry on training exactly where it left
+ * off: the weights, the epoch, the learning rate, the error tracking vars,
+ * the optimizer's state and the mini-batch shuffler's random state. 
+ * Immutable once constructed, so it can be written from another thread 
+ * while training goes on.
+ *
+ * Layout (big-endian):
+ *   int    magic ('M','L','P','K')
+ *   int    version
+ *   int    epoch
+ *   double learningRate
+ *   double lastError
+ *   double lastDeltaError
+ *   int    numStates
+ *   for each optimizer state vector:
+ *     int    length
+ *     double values[length]
+ *   int    length of the serialized shuffle Random
+ *   byte   serialized shuffle Random[length]
+ *   the weights, as an MlpFile model
+ *
+ * @author Michael DuBois
+ *
+ */
+public class TrainingCheckpoint {
+	
+	public static final int MAGIC = 0x4D4C504B;
+	public static final int VERSION = 1;
+	// The shuffle Random is the only object a checkpoint may hold
+	private static final ObjectInputFilter RANDOM_FILTER = 
+			ObjectInputFilter.Config.createFilter(
+					"java.util.Random;maxdepth=1;maxrefs=1;!*");
+	
+	private final int mEpoch;
+	private final double mLearningRate;
+	private final double mLastError;
+	private final double mLastDeltaError;
+	private final FrozenMlp mWeights;
+	private final double[][] mOptimizerState;
+	private final byte[] mShuffleRandom;
+	
+	/**
+	 * Constructs a TrainingCheckpoint.
+	 * @param epoch - the next epoch to train
+	 * @param learningRate
+	 * @param lastError
+	 * @param lastDeltaError
+	 * @param weights - a snapshot of the weights
+	 * @param optimizerState - a copy of the optimizer's state
+	 * @param shuffleRandom - copied, so it can go on being used
+	 */
+	public TrainingCheckpoint(int epoch, 
+							  double learningRate, 
+							  double lastError, 
+							  double lastDeltaError, 
+							  FrozenMlp weights, 
+							  double[][] optimizerState, 
+							  Random shuffleRandom) 
+	{
+		this(epoch, learningRate, lastError, lastDeltaError, weights, 
+			 optimizerState, serialize(shuffleRandom));
+	}
+	
+	private TrainingCheckpoint(int epoch, 
+							   double learningRate, 
+							   double lastError, 
+							   double lastDeltaError, 
+							   FrozenMlp weights, 
+							   double[][] optimizerState, 
+							   byte[] shuffleRandom) 
+	{
+		mEpoch = epoch;
+		mLearningRate = learningRate;
+		mLastError = lastError;
+		mLastDeltaError = lastDeltaError;
+		mWeights = weights;
+		mOptimizerState = optimizerState;
+		mShuffleRandom = shuffleRandom;
+	}
+	
+	public int getEpoch() {
+		return mEpoch;
+	}
+	
+	public double getLearningRate() {
+		return mLearningRate;
+	}
+	
+	public double getLastError() {
+		return mLastError;
+	}
+	
+	public double getLastDeltaError() {
+		return mLastDeltaError;
+	}
+	
+	public FrozenMlp getWeights() {
+		return mWeights;
+	}
+	
+	public double[][] getOptimizerState() {
+		return mOptimizerState;
+	}
+	
+	/**
+	 * Returns a new Random in the saved state.
+	 * @return
+	 */
+	public Random getShuffleRandom() {
+		try {
+			return deserialize(mShuffleRandom);
+		} catch(IOException e) {
+			// read() already deserialized these bytes once
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Writes the checkpoint to a file. It's written to a temporary file 
+	 * first and moved into place, so a crash mid-write leaves the last
+	 * checkpoint intact.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		long size = 4 * 4 + 3 * 8 + 4 + mShuffleRandom.length 
+				+ MlpFile.size(mWeights);
+		for(double[] state : mOptimizerState)
+			size += 4 + 8L * state.length;
+		if(size > Integer.MAX_VALUE)
+			throw new IOException("Checkpoint is too large to write.");
+		
+		ByteBuffer buffer = ByteBuffer.allocate((int) size);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(mEpoch);
+		buffer.putDouble(mLearningRate);
+		buffer.putDouble(mLastError);
+		buffer.putDouble(mLastDeltaError);
+		buffer.putInt(mOptimizerState.length);
+		for(double[] state : mOptimizerState) {
+			buffer.putInt(state.length);
+			buffer.asDoubleBuffer().put(state);
+			buffer.position(buffer.position() + 8 * state.length);
+		}
+		buffer.putInt(mShuffleRandom.length);
+		buffer.put(mShuffleRandom);
+		MlpFile.write(mWeights, buffer);
+		buffer.flip();
+		
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			FileChannel channel = out.getChannel();
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(true);
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(), 
+				   StandardCopyOption.REPLACE_EXISTING, 
+				   StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Reads a checkpoint from a file.
+	 * @param file
+	 * @return
+	 * @throws IOException if the file is not a checkpoint this version can 
+	 * 			read
+	 */
+	public static TrainingCheckpoint read(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			MappedByteBuffer buffer =
+				channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			String name = file.getPath();
+			if(buffer.remaining() < 4 * 4 + 3 * 8 
+					|| buffer.getInt() != MAGIC)
+				throw new IOException("Not a training checkpoint: " + name);
+			int version = buffer.getInt();
+			if(version != VERSION)
+				throw new IOException("Unsupported checkpoint version " 
+						+ version + ": " + name);
+			
+			int epoch = buffer.getInt();
+			double learningRate = buffer.getDouble();
+			double lastError = buffer.getDouble();
+			double lastDeltaError = buffer.getDouble();
+			// Every state vector takes at least its 4-byte length
+			int numStates = buffer.getInt();
+			if(numStates < 0 || 4L * numStates > buffer.remaining())
+				throw new IOException("Corrupt checkpoint: " + name);
+			double[][] optimizerState = new double[numStates][];
+			for(int i=0; i < optimizerState.length; i++) {
+				int length = buffer.getInt();
+				if(length < 0 || 8L * length > buffer.remaining())
+					throw new IOException("Corrupt checkpoint: " + name);
+				optimizerState[i] = new double[length];
+				buffer.asDoubleBuffer().get(optimizerState[i]);
+				buffer.position(buffer.position() + 8 * length);
+			}
+			int randomLength = buffer.getInt();
+			if(randomLength < 0 || randomLength > buffer.remaining())
+				throw new IOException("Corrupt checkpoint: " + name);
+			byte[] shuffleRandom = new byte[randomLength];
+			buffer.get(shuffleRandom);
+			try {
+				deserialize(shuffleRandom);
+			} catch(IOException e) {
+				throw new IOException("Corrupt checkpoint: " + name, e);
+			}
+			FrozenMlp weights = MlpFile.read(buffer, name);
+			
+			return new TrainingCheckpoint(epoch, learningRate, lastError, 
+					lastDeltaError, weights, optimizerState, shuffleRandom);
+		} catch(java.nio.BufferUnderflowException e) {
+			throw new IOException("Truncated checkpoint: " + file.getPath());
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Reads a Random back from its Java serialization. Nothing but a
+	 * java.util.Random is let through, so a crafted checkpoint can't 
+	 * instantiate anything else on the classpath.
+	 * @param bytes
+	 * @return
+	 * @throws IOException if the bytes aren't a serialized Random
+	 */
+	private static Random deserialize(byte[] bytes) throws IOException {
+		ObjectInputStream in = 
+				new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			in.setObjectInputFilter(RANDOM_FILTER);
+			Object random = in.readObject();
+			if(random == null || random.getClass() != Random.class)
+				throw new IOException("Not a serialized Random.");
+			return (Random) random;
+		} catch(ClassNotFoundException e) {
+			throw new IOException(e);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Returns the Java serialization of a Random, which carries its seed.
+	 * @param random
+	 * @return
+	 */
+	private static byte[] serialize(Random random) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(random);
+			out.close();
+			return bytes.toByteArray();
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
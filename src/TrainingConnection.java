@@ -0,0 +1,177 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+
+/**
+ * One end of the TCP connection between a TrainingCoordinator and a 
+ * TrainingWorker. The worker opens with a hello carrying its mlp's shape.
+ * After that the coordinator sends one-byte commands and the worker answers
+ * each one in turn:
+ * SET_WEIGHTS, followed by every weight: no answer.
+ * TRAIN: the number of samples, then the summed deltaWeights.
+ * TEST: the sum of squared residuals, then the number of outputs.
+ * STOP: no answer, the worker hangs up.
+ * Weights travel as big-endian doubles, layer by layer from the head, each
+ * layer's flat block in order.
+ * @author Michael DuBois
+ *
+ */
+public class TrainingConnection {
+	
+	public static final int MAGIC = 0x48415356;
+	public static final byte SET_WEIGHTS = 1;
+	public static final byte TRAIN = 2;
+	public static final byte TEST = 3;
+	public static final byte STOP = 4;
+	
+	private static final int BUFFER_DOUBLES = 4096;
+	
+	private final Socket mSocket;
+	private final DataInputStream mIn;
+	private final DataOutputStream mOut;
+	// Staging for bulk transfers of doubles
+	private final byte[] mBytes = new byte[BUFFER_DOUBLES * 8];
+	private final DoubleBuffer mDoubles = 
+			ByteBuffer.wrap(mBytes).asDoubleBuffer();
+	
+	/**
+	 * Constructs a TrainingConnection over a connected socket.
+	 * @param socket
+	 * @throws IOException
+	 */
+	public TrainingConnection(Socket socket) throws IOException {
+		mSocket = socket;
+		// Commands are small and answered one at a time
+		mSocket.setTcpNoDelay(true);
+		mIn = new DataInputStream(
+				new BufferedInputStream(socket.getInputStream()));
+		mOut = new DataOutputStream(
+				new BufferedOutputStream(socket.getOutputStream()));
+	}
+	
+	/**
+	 * Sends the worker's hello.
+	 * @param numInputs - the mlp's feature vector length
+	 * @param numWeights - the mlp's total number of weights
+	 * @throws IOException
+	 */
+	public void writeHello(int numInputs, int numWeights) throws IOException {
+		mOut.writeInt(MAGIC);
+		mOut.writeInt(numInputs);
+		mOut.writeInt(numWeights);
+		mOut.flush();
+	}
+	
+	/**
+	 * Reads a worker's hello.
+	 * @return {numInputs, numWeights}
+	 * @throws IOException if the peer isn't a TrainingWorker
+	 */
+	public int[] readHello() throws IOException {
+		if(mIn.readInt() != MAGIC)
+			throw new IOException("Peer isn't a TrainingWorker.");
+		int numInputs = mIn.readInt();
+		int numWeights = mIn.readInt();
+		return new int[] {numInputs, numWeights};
+	}
+	
+	public void writeCommand(byte command) throws IOException {
+		mOut.writeByte(command);
+	}
+	
+	public byte readCommand() throws IOException {
+		return mIn.readByte();
+	}
+	
+	public void writeLong(long value) throws IOException {
+		mOut.writeLong(value);
+	}
+	
+	public long readLong() throws IOException {
+		return mIn.readLong();
+	}
+	
+	public void writeDouble(double value) throws IOException {
+		mOut.writeDouble(value);
+	}
+	
+	public double readDouble() throws IOException {
+		return mIn.readDouble();
+	}
+	
+	/**
+	 * Sends every layer's weights or deltaWeights.
+	 * @param mlp
+	 * @param deltas - whether to send the deltaWeights
+	 * @throws IOException
+	 */
+	public void writeWeights(Mlp mlp, boolean deltas) throws IOException {
+		Mlp.Layer current = mlp.getHead();
+		while(current != null) {
+			double[] values = deltas 
+					? current.getDeltaWeights() : current.getWeights();
+			for(int start=0; start < values.length; start += BUFFER_DOUBLES) {
+				int length = Math.min(BUFFER_DOUBLES, values.length - start);
+				mDoubles.clear();
+				mDoubles.put(values, start, length);
+				mOut.write(mBytes, 0, length * 8);
+			}
+			current = current.next();
+		}
+	}
+	
+	/**
+	 * Receives every layer's weights or deltaWeights.
+	 * @param mlp - an mlp of the sender's shape, with initialized weights
+	 * @param deltas - whether the values are deltaWeights, which are added 
+	 * 			to the mlp's deltaWeights rather than replacing its weights
+	 * @throws IOException
+	 */
+	public void readWeights(Mlp mlp, boolean deltas) throws IOException {
+		Mlp.Layer current = mlp.getHead();
+		while(current != null) {
+			double[] values = deltas 
+					? current.getDeltaWeights() : current.getWeights();
+			for(int start=0; start < values.length; start += BUFFER_DOUBLES) {
+				int length = Math.min(BUFFER_DOUBLES, values.length - start);
+				mIn.readFully(mBytes, 0, length * 8);
+				mDoubles.clear();
+				if(deltas) {
+					for(int i=0; i < length; i++)
+						values[start + i] += mDoubles.get(i);
+				} else {
+					mDoubles.get(values, start, length);
+				}
+			}
+			current = current.next();
+		}
+	}
+	
+	public void flush() throws IOException {
+		mOut.flush();
+	}
+	
+	public void close() {
+		try { mSocket.close(); } catch(IOException e) {}
+	}
+	
+	/**
+	 * Returns the total number of weights in an mlp.
+	 * @param mlp - an mlp with initialized weights
+	 * @return
+	 */
+	public static int numWeights(Mlp mlp) {
+		int numWeights = 0;
+		Mlp.Layer current = mlp.getHead();
+		while(current != null) {
+			numWeights += current.getWeights().length;
+			current = current.next();
+		}
+		return numWeights;
+	}
+}
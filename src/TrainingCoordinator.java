@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.util.Arrays;
+
+/**
+ * Trains an mlp data-parallel across TrainingWorker processes, each of 
+ * which owns a shard of the training and testing containers and uses every
+ * core it has. The coordinator holds the master weights and the optimizer.
+ * Every epoch it collects each worker's summed gradient, averages them over
+ * all samples, updates the weights, sends them back out and collects the 
+ * workers' testing errors. That is the same full-batch update MlpTrainer 
+ * makes, only summed over more machines. Workers are sent each command 
+ * before any answer is read, so they all compute at once.
+ * @author Michael DuBois
+ *
+ */
+public class TrainingCoordinator {
+	
+	public static final int DEFAULT_PORT = 5731;
+	
+	private Mlp mMlp;
+	private PrintStream mOut;
+	private IOptimizer mOptimizer = 
+			new GradientAscent(GradientAscent.DEFAULT_LEARNING_RATE);
+	private double mTargetError = Double.NEGATIVE_INFINITY;
+	private TrainingConnection[] mWorkers;
+	
+	private int mEpoch = 0;
+	private double mLearningRate = 1;
+	private double mLastError = Double.NaN;
+	private double mLastDeltaError;
+	
+	/**
+	 * Constructs a TrainingCoordinator.
+	 * @param mlp - the mlp to train. If its weights aren't initialized, they
+	 * 			are once the workers report their feature vector length.
+	 * @param out
+	 */
+	public TrainingCoordinator(Mlp mlp, PrintStream out) {
+		mMlp = mlp;
+		mOut = out;
+	}
+	
+	/**
+	 * Sets the rule used to update the weights.
+	 * @param optimizer
+	 */
+	public void setOptimizer(IOptimizer optimizer) {
+		if(optimizer == null)
+			throw new IllegalArgumentException("optimizer must not be null.");
+		mOptimizer = optimizer;
+	}
+	
+	/**
+	 * Sets the testing error at which training stops.
+	 * @param targetError
+	 */
+	public void setTargetError(double targetError) {
+		mTargetError = targetError;
+	}
+	
+	/**
+	 * Returns the testing error of the last epoch.
+	 * @return
+	 */
+	public double getLastError() {
+		return mLastError;
+	}
+	
+	/**
+	 * Waits for numWorkers workers to connect, then trains until the error
+	 * converges, reaches the target or maxEpochs pass. The workers are told
+	 * to stop when training ends.
+	 * @param port - the port to listen on
+	 * @param numWorkers
+	 * @param minDeltaError
+	 * @param maxEpochs
+	 * @return the number of epochs trained
+	 * @throws IOException if a worker fails or doesn't match the mlp
+	 */
+	public int trainMlp(int port, 
+						int numWorkers, 
+						double minDeltaError, 
+						int maxEpochs) throws IOException 
+	{
+		if(numWorkers <= 0)
+			throw new IllegalArgumentException(
+					"numWorkers must be greater than zero.");
+		long startTime = System.currentTimeMillis();
+		mWorkers = new TrainingConnection[numWorkers];
+		try {
+			acceptWorkers(port);
+			mOptimizer.init(mMlp);
+			mOut.println("Beginning distributed training session (" 
+					+ numWorkers + " workers, " + mOptimizer.getName() 
+					+ ")...");
+			
+			mEpoch = 0;
+			mLastError = Double.NaN;
+			broadcastWeights();
+			double error = computeError();
+			mOut.println("Initial error: " + error);
+			mLastError = error;
+			
+			boolean converged = false;
+			while(!converged) {
+				long epochStart = System.currentTimeMillis();
+				mLearningRate = 1D / (.01*mEpoch + 1D);
+				
+				long numData = computeGradient();
+				MlpTrainer.applyDeltaWeights(mMlp, mOptimizer, 
+											 1D / numData, mLearningRate);
+				broadcastWeights();
+				error = computeError();
+				mLastDeltaError = error - mLastError;
+				mLastError = error;
+				
+				long elapsed = System.currentTimeMillis() - epochStart;
+				mOut.println("Epoch " + mEpoch + " complete. Error " 
+						+ mLastError + " (" + mLastDeltaError + "). " 
+						+ numData + " samples, " + elapsed + "ms.");
+				
+				if(mLastError <= mTargetError) {
+					converged = true;
+					mOut.println("Reached target error " + mTargetError 
+							+ " after " 
+							+ (System.currentTimeMillis() - startTime) 
+							+ "ms.");
+				} else if(Math.abs(mLastDeltaError) < minDeltaError) {
+					converged = true;
+					mOut.println("|mLastDeltaError| < minDeltaError : |" 
+							+ mLastDeltaError + "| < " + minDeltaError);
+				} else if(mEpoch >= maxEpochs) {
+					converged = true;
+					mOut.println("WARNING: Exceeded max epochs.");
+				}
+				mEpoch++;
+			}
+			
+			for(TrainingConnection worker : mWorkers) {
+				worker.writeCommand(TrainingConnection.STOP);
+				worker.flush();
+			}
+		} finally {
+			for(TrainingConnection worker : mWorkers) {
+				if(worker != null)
+					worker.close();
+			}
+		}
+		
+		mOut.println("Distributed training complete. (" + mEpoch 
+				+ " epochs | " + (System.currentTimeMillis() - startTime) 
+				+ "ms)");
+		return mEpoch;
+	}
+	
+	/**
+	 * Accepts the workers and checks that their mlps match.
+	 * @param port
+	 * @throws IOException
+	 */
+	private void acceptWorkers(int port) throws IOException {
+		ServerSocket server = new ServerSocket(port);
+		try {
+			mOut.println("Waiting for " + mWorkers.length 
+					+ " workers on port " + server.getLocalPort() + "...");
+			for(int i=0; i < mWorkers.length; i++) {
+				mWorkers[i] = new TrainingConnection(server.accept());
+				int[] hello = mWorkers[i].readHello();
+				if(mMlp.getHead().getWeights() == null)
+					mMlp.evaluate(new double[hello[0]]);
+				if(hello[0] != mMlp.getHead().getNumInputs() 
+						|| hello[1] != TrainingConnection.numWeights(mMlp))
+					throw new IOException("Worker " + i + "'s mlp " 
+							+ Arrays.toString(hello) 
+							+ " doesn't match the coordinator's.");
+				mOut.println("Worker " + i + " connected.");
+			}
+		} finally {
+			server.close();
+		}
+	}
+	
+	/**
+	 * Sends the current weights to every worker.
+	 * @throws IOException
+	 */
+	private void broadcastWeights() throws IOException {
+		for(TrainingConnection worker : mWorkers) {
+			worker.writeCommand(TrainingConnection.SET_WEIGHTS);
+			worker.writeWeights(mMlp, false);
+			worker.flush();
+		}
+	}
+	
+	/**
+	 * Has every worker test the current weights.
+	 * @return the mean square error over every worker's testing set
+	 * @throws IOException
+	 */
+	private double computeError() throws IOException {
+		for(TrainingConnection worker : mWorkers) {
+			worker.writeCommand(TrainingConnection.TEST);
+			worker.flush();
+		}
+		double sum = 0;
+		double quantity = 0;
+		for(TrainingConnection worker : mWorkers) {
+			sum += worker.readDouble();
+			quantity += worker.readDouble();
+		}
+		if(quantity == 0)
+			throw new IOException("No testing data was read.");
+		return sum / quantity;
+	}
+	
+	/**
+	 * Has every worker run an epoch over its shard and sums their gradients
+	 * into the mlp's deltaWeights.
+	 * @return the number of samples summed
+	 * @throws IOException
+	 */
+	private long computeGradient() throws IOException {
+		for(TrainingConnection worker : mWorkers) {
+			worker.writeCommand(TrainingConnection.TRAIN);
+			worker.flush();
+		}
+		long numData = 0;
+		for(TrainingConnection worker : mWorkers) {
+			numData += worker.readLong();
+			worker.readWeights(mMlp, true);
+		}
+		if(numData == 0)
+			throw new IOException("No training data was read.");
+		return numData;
+	}
+}
@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Computes gradients and errors on a shard of the data for a 
+ * TrainingCoordinator. An MlpTrainer does the work on every core, and the
+ * worker answers the coordinator's commands until told to stop.
+ * @author Michael DuBois
+ *
+ */
+public class TrainingWorker {
+	
+	// How long to keep retrying while the coordinator starts up
+	public static final int CONNECT_TIMEOUT = 30000;
+	public static final int CONNECT_RETRY_INTERVAL = 250;
+	
+	private Mlp mMlp;
+	private MlpTrainer mTrainer;
+	private PrintStream mOut;
+	
+	/**
+	 * Constructs a TrainingWorker.
+	 * @param mlp - of the same topology as the coordinator's
+	 * @param trainer - a full-batch trainer of mlp
+	 * @param out
+	 */
+	public TrainingWorker(Mlp mlp, MlpTrainer trainer, PrintStream out) {
+		mMlp = mlp;
+		mTrainer = trainer;
+		mOut = out;
+	}
+	
+	/**
+	 * Connects to a coordinator and serves it until it says to stop.
+	 * @param host
+	 * @param port
+	 * @param trainingContainers - this worker's shard of the training set
+	 * @param testingContainers - this worker's shard of the testing set
+	 * @param maxThreads
+	 * @throws IOException if the connection or the training fails
+	 */
+	public void run(String host, 
+					int port, 
+					IDataContainer[] trainingContainers,
+					IDataContainer[] testingContainers, 
+					int maxThreads) throws IOException 
+	{
+		if(trainingContainers.length == 0)
+			throw new IllegalArgumentException(
+					"A worker needs at least one training container.");
+		mTrainer.startWorker(trainingContainers, testingContainers, 
+							 maxThreads);
+		TrainingConnection connection = null;
+		try {
+			connection = new TrainingConnection(connect(host, port));
+			connection.writeHello(mMlp.getHead().getNumInputs(), 
+								  TrainingConnection.numWeights(mMlp));
+			mOut.println("Connected to coordinator " + host + ":" + port);
+			
+			boolean stopped = false;
+			while(!stopped) {
+				byte command = connection.readCommand();
+				switch(command) {
+				case TrainingConnection.SET_WEIGHTS:
+					connection.readWeights(mMlp, false);
+					break;
+				case TrainingConnection.TRAIN:
+					int numData = mTrainer.computeGradient();
+					connection.writeLong(numData);
+					connection.writeWeights(mMlp, true);
+					connection.flush();
+					clearDeltaWeights();
+					break;
+				case TrainingConnection.TEST:
+					double[] sums = mTrainer.computeTestSums();
+					connection.writeDouble(sums[0]);
+					connection.writeDouble(sums[1]);
+					connection.flush();
+					break;
+				case TrainingConnection.STOP:
+					stopped = true;
+					break;
+				default:
+					throw new IOException("Unknown command " + command);
+				}
+			}
+			mOut.println("Coordinator finished training.");
+		} catch(InterruptedException e) {
+			throw new IOException("Training was interrupted.", e);
+		} catch(ExecutionException e) {
+			throw new IOException("Training failed.", e);
+		} finally {
+			if(connection != null)
+				connection.close();
+			mTrainer.stopWorker();
+		}
+	}
+	
+	/**
+	 * Opens a socket to the coordinator, retrying until CONNECT_TIMEOUT in
+	 * case it hasn't started listening yet.
+	 * @param host
+	 * @param port
+	 * @return
+	 * @throws IOException
+	 */
+	private static Socket connect(String host, int port) throws IOException {
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		while(true) {
+			try {
+				return new Socket(host, port);
+			} catch(ConnectException e) {
+				if(System.currentTimeMillis() > deadline)
+					throw e;
+			}
+			try {
+				Thread.sleep(CONNECT_RETRY_INTERVAL);
+			} catch(InterruptedException e) {
+				throw new IOException("Interrupted while connecting.", e);
+			}
+		}
+	}
+	
+	/**
+	 * Clears the mlp's summed deltaWeights once they've been sent.
+	 */
+	private void clearDeltaWeights() {
+		Mlp.Layer current = mMlp.getHead();
+		while(current != null) {
+			Arrays.fill(current.getDeltaWeights(), 0);
+			current = current.next();
+		}
+	}
+}
@@ -0,0 +1,214 @@
+import java.util.Random;
+
+/**
+ * A fixed, stratified random sample of testing windows, for estimating an
+ * mlp's mean square error without running the whole testing set.
+ * Windows are stratified by their label's class, so rare classes are 
+ * represented in proportion. Each stratum is sampled uniformly in one pass 
+ * over the containers, and the sample is packed into flat arrays once, so
+ * estimates read no containers. The estimate is the stratified mean, with
+ * a 95% confidence interval from the per-stratum variances.
+ * @author Michael DuBois
+ *
+ */
+public class ValidationSample {
+	
+	// Two-sided 95% quantile of the normal distribution
+	public static final double Z_95 = 1.959963984540054;
+	
+	private int mNumInputs;
+	private int mNumOutputs;
+	// Sampled windows, stratum by stratum, row-major
+	private double[] mFeatures;
+	private double[] mLabels;
+	// [stratum] first row, number of rows and population share
+	private int[] mStart;
+	private int[] mCount;
+	private double[] mPopulation;
+	private double[] mWeight;
+	private int mSize;
+	
+	/**
+	 * Samples windows from containers.
+	 * @param containers - read once, one at a time
+	 * @param size - the number of windows to sample in all
+	 * @param random
+	 * @throws IDataContainer.DataUnavailableException
+	 */
+	public ValidationSample(IDataContainer[] containers, 
+							int size, 
+							Random random) 
+			throws IDataContainer.DataUnavailableException 
+	{
+		if(size <= 0)
+			throw new IllegalArgumentException(
+					"size must be greater than zero.");
+		
+		// One reservoir of up to size windows per stratum, allocated once 
+		// the first window shows the shape
+		double[][] features = null;
+		double[][] labels = null;
+		long[] seen = null;
+		for(IDataContainer container : containers) {
+			try {
+				container.open();
+				while(container.hasNext()) {
+					LabeledData datum = container.next();
+					double[] feats = datum.getFeatures();
+					double[] targets = datum.getLabels();
+					if(features == null) {
+						mNumInputs = feats.length;
+						mNumOutputs = targets.length;
+						int numStrata = Math.max(2, mNumOutputs);
+						features = new double[numStrata][];
+						labels = new double[numStrata][];
+						for(int h=0; h < numStrata; h++) {
+							features[h] = new double[size * mNumInputs];
+							labels[h] = new double[size * mNumOutputs];
+						}
+						seen = new long[numStrata];
+					}
+					int h = stratum(targets);
+					// Algorithm R
+					long slot = seen[h]++;
+					if(slot >= size) {
+						slot = (long) (random.nextDouble() * seen[h]);
+						if(slot >= size)
+							continue;
+					}
+					System.arraycopy(feats, 0, features[h], 
+									 (int) slot * mNumInputs, mNumInputs);
+					System.arraycopy(targets, 0, labels[h], 
+									 (int) slot * mNumOutputs, mNumOutputs);
+				}
+			} finally {
+				try { container.close(); } catch(Exception e) {}
+			}
+		}
+		if(features == null)
+			throw new IllegalArgumentException("The containers are empty.");
+		
+		// Allocate the sample to strata in proportion to their sizes
+		int numStrata = features.length;
+		long total = 0;
+		for(long n : seen)
+			total += n;
+		mStart = new int[numStrata];
+		mCount = new int[numStrata];
+		mPopulation = new double[numStrata];
+		mWeight = new double[numStrata];
+		for(int h=0; h < numStrata; h++) {
+			int held = (int) Math.min(seen[h], size);
+			int count = (int) Math.round((double) size * seen[h] / total);
+			// At least two windows, for a variance
+			count = Math.min(held, Math.max(count, 2));
+			mStart[h] = mSize;
+			mCount[h] = count;
+			mPopulation[h] = seen[h];
+			mWeight[h] = (double) seen[h] / total;
+			mSize += count;
+		}
+		
+		// A reservoir's slots aren't in random order, so shuffle the rows
+		// before taking the first count of them
+		mFeatures = new double[mSize * mNumInputs];
+		mLabels = new double[mSize * mNumOutputs];
+		for(int h=0; h < numStrata; h++) {
+			int held = (int) Math.min(seen[h], size);
+			for(int r=0; r < mCount[h]; r++) {
+				int pick = r + random.nextInt(held - r);
+				swapRows(features[h], mNumInputs, r, pick);
+				swapRows(labels[h], mNumOutputs, r, pick);
+			}
+			System.arraycopy(features[h], 0, mFeatures, 
+							 mStart[h] * mNumInputs, mCount[h] * mNumInputs);
+			System.arraycopy(labels[h], 0, mLabels, 
+							 mStart[h] * mNumOutputs, 
+							 mCount[h] * mNumOutputs);
+		}
+	}
+	
+	/**
+	 * Returns the number of windows sampled.
+	 * @return
+	 */
+	public int size() {
+		return mSize;
+	}
+	
+	/**
+	 * Estimates a snapshot's mean square error over the whole population.
+	 * @param snapshot
+	 * @return {estimate, half-width of its 95% confidence interval}
+	 */
+	public double[] estimate(FrozenMlp snapshot) {
+		Mlp.Workspace workspace = snapshot.newWorkspace();
+		double[] feats = new double[mNumInputs];
+		double mean = 0;
+		double variance = 0;
+		for(int h=0; h < mCount.length; h++) {
+			int count = mCount[h];
+			if(count == 0)
+				continue;
+			double sum = 0;
+			double sumSqr = 0;
+			for(int r=mStart[h]; r < mStart[h] + count; r++) {
+				System.arraycopy(mFeatures, r * mNumInputs, 
+								 feats, 0, mNumInputs);
+				double[] outputs = snapshot.evaluate(feats, workspace);
+				double error = 0;
+				for(int j=0; j < mNumOutputs; j++) {
+					double diff = mLabels[r * mNumOutputs + j] - outputs[j];
+					error += diff * diff;
+				}
+				error /= mNumOutputs;
+				sum += error;
+				sumSqr += error * error;
+			}
+			double stratumMean = sum / count;
+			mean += mWeight[h] * stratumMean;
+			if(count > 1) {
+				double s2 = (sumSqr - count * stratumMean * stratumMean) 
+						/ (count - 1);
+				// With the finite population correction
+				double fpc = 1D - count / mPopulation[h];
+				variance += mWeight[h] * mWeight[h] * fpc 
+						* Math.max(s2, 0) / count;
+			}
+		}
+		return new double[] {mean, Z_95 * Math.sqrt(variance)};
+	}
+	
+	/**
+	 * Returns a window's stratum: its label's class.
+	 * @param labels
+	 * @return
+	 */
+	private static int stratum(double[] labels) {
+		if(labels.length == 1)
+			return (labels[0] >= .5) ? 1 : 0;
+		int argMax = 0;
+		for(int j=1; j < labels.length; j++) {
+			if(labels[j] > labels[argMax])
+				argMax = j;
+		}
+		return argMax;
+	}
+	
+	/**
+	 * Swaps two rows of a row-major block.
+	 * @param block
+	 * @param width
+	 * @param a
+	 * @param b
+	 */
+	private static void swapRows(double[] block, int width, int a, int b) {
+		if(a == b)
+			return;
+		for(int i=0; i < width; i++) {
+			double tmp = block[a * width + i];
+			block[a * width + i] = block[b * width + i];
+			block[b * width + i] = tmp;
+		}
+	}
+}
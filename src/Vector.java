@@ -5,6 +5,57 @@
  */
 public class Vector {
 
+	/**
+	 * The inner loops of training and scoring. Vector's dot() and axpy()
+	 * run them through KERNEL, which is chosen once when the class loads.
+	 */
+	interface Kernel {
+		public double dot(double[] v1, int offset1, 
+						  double[] v2, int offset2, 
+						  int length);
+		public float dot(float[] v1, int offset1, 
+						 float[] v2, int offset2, 
+						 int length);
+		public void axpy(double alpha, 
+						 double[] x, int xOffset, 
+						 double[] y, int yOffset, 
+						 int length);
+	}
+	
+	// Built separately from simd/, against jdk.incubator.vector
+	private static final String SIMD_KERNEL = "SimdKernel";
+	private static final String VECTOR_MODULE = "jdk.incubator.vector";
+	
+	static final Kernel KERNEL = loadKernel();
+	
+	/**
+	 * Returns the SIMD kernel if the JVM was started with the Vector API 
+	 * module (--add-modules jdk.incubator.vector) and SimdKernel is on the
+	 * classpath, or else the scalar loops.
+	 * @return
+	 */
+	private static Kernel loadKernel() {
+		if(ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) {
+			try {
+				return (Kernel) Class.forName(SIMD_KERNEL)
+						.getDeclaredConstructor().newInstance();
+			} catch(Exception e) {
+				// Not built, fall back
+			} catch(LinkageError e) {
+				// Built against a different Vector API, fall back
+			}
+		}
+		return new ScalarKernel();
+	}
+	
+	/**
+	 * Returns the name of the kernel in use.
+	 * @return
+	 */
+	public static String kernelName() {
+		return KERNEL.getClass().getName();
+	}
+
 	/**
 	 * Vector dot product
 	 * @param v1
@@ -14,13 +65,91 @@ public class Vector {
 	public static double dot(double[] v1, double[] v2) {
 		// Force an IndexOutOfBoundsException if lengths aren't equal
 		int length = Math.max(v1.length, v2.length);
-		double dot = 0D;
+		return dot(v1, 0, v2, 0, length);
+	}
+	
+	/**
+	 * Vector dot product over length elements of two arrays, starting at the
+	 * given offsets. Lets callers dot rows of a row-major matrix block.
+	 * @param v1
+	 * @param offset1 - index of the first element of v1 to use
+	 * @param v2
+	 * @param offset2 - index of the first element of v2 to use
+	 * @param length - the number of elements to use
+	 * @return
+	 */
+	public static double dot(double[] v1, int offset1, 
+							 double[] v2, int offset2, 
+							 int length) {
+		return KERNEL.dot(v1, offset1, v2, offset2, length);
+	}
+	
+	/**
+	 * Single-precision dot product over length elements of two arrays, 
+	 * starting at the given offsets.
+	 * @param v1
+	 * @param offset1 - index of the first element of v1 to use
+	 * @param v2
+	 * @param offset2 - index of the first element of v2 to use
+	 * @param length - the number of elements to use
+	 * @return
+	 */
+	public static float dot(float[] v1, int offset1, 
+							float[] v2, int offset2, 
+							int length) {
+		return KERNEL.dot(v1, offset1, v2, offset2, length);
+	}
+	
+	/**
+	 * Integer dot product of two int8 vectors over length elements starting
+	 * at the given offsets, accumulated in 32 bits.
+	 * @param v1
+	 * @param offset1 - index of the first element of v1 to use
+	 * @param v2
+	 * @param offset2 - index of the first element of v2 to use
+	 * @param length - the number of elements to use
+	 * @return
+	 */
+	public static int dot(byte[] v1, int offset1, 
+						  byte[] v2, int offset2, 
+						  int length) {
+		int dot = 0;
 		for(int i=0; i < length; i++) {
-			dot += v1[i] * v2[i];
+			dot += v1[offset1 + i] * v2[offset2 + i];
 		}
 		return dot;
 	}
 	
+	/**
+	 * Fused in-place y += alpha*x, without the temporary array that 
+	 * scaled() followed by addTo() would allocate. y is the destination.
+	 * @param alpha
+	 * @param x
+	 * @param y
+	 */
+	public static void axpy(double alpha, double[] x, double[] y) {
+		// Force an IndexOutOfBoundsException if lengths aren't equal
+		int length = Math.max(x.length, y.length);
+		axpy(alpha, x, 0, y, 0, length);
+	}
+	
+	/**
+	 * Fused in-place y += alpha*x over length elements starting at the given
+	 * offsets. y is the destination.
+	 * @param alpha
+	 * @param x
+	 * @param xOffset - index of the first element of x to use
+	 * @param y
+	 * @param yOffset - index of the first element of y to update
+	 * @param length - the number of elements to update
+	 */
+	public static void axpy(double alpha, 
+							double[] x, int xOffset, 
+							double[] y, int yOffset, 
+							int length) {
+		KERNEL.axpy(alpha, x, xOffset, y, yOffset, length);
+	}
+	
 	/**
 	 * Returns a version of the given vector scaled by alpha
 	 * @param v1
@@ -140,4 +269,59 @@ public class Vector {
 		}
 	}
 	
+	/**
+	 * The plain Java loops, for when the Vector API isn't available.
+	 */
+	static class ScalarKernel implements Kernel {
+		
+		@Override
+		public double dot(double[] v1, int offset1, 
+						  double[] v2, int offset2, 
+						  int length) {
+			// Four independent accumulators keep the multiply-adds pipelined
+			// instead of waiting on one long chain of dependent additions.
+			double dot0 = 0D, dot1 = 0D, dot2 = 0D, dot3 = 0D;
+			int i = 0;
+			for(; i + 3 < length; i += 4) {
+				dot0 += v1[offset1 + i] * v2[offset2 + i];
+				dot1 += v1[offset1 + i + 1] * v2[offset2 + i + 1];
+				dot2 += v1[offset1 + i + 2] * v2[offset2 + i + 2];
+				dot3 += v1[offset1 + i + 3] * v2[offset2 + i + 3];
+			}
+			for(; i < length; i++) {
+				dot0 += v1[offset1 + i] * v2[offset2 + i];
+			}
+			return (dot0 + dot1) + (dot2 + dot3);
+		}
+		
+		@Override
+		public float dot(float[] v1, int offset1, 
+						 float[] v2, int offset2, 
+						 int length) {
+			float dot0 = 0f, dot1 = 0f, dot2 = 0f, dot3 = 0f;
+			int i = 0;
+			for(; i + 3 < length; i += 4) {
+				dot0 += v1[offset1 + i] * v2[offset2 + i];
+				dot1 += v1[offset1 + i + 1] * v2[offset2 + i + 1];
+				dot2 += v1[offset1 + i + 2] * v2[offset2 + i + 2];
+				dot3 += v1[offset1 + i + 3] * v2[offset2 + i + 3];
+			}
+			for(; i < length; i++) {
+				dot0 += v1[offset1 + i] * v2[offset2 + i];
+			}
+			return (dot0 + dot1) + (dot2 + dot3);
+		}
+		
+		@Override
+		public void axpy(double alpha, 
+						 double[] x, int xOffset, 
+						 double[] y, int yOffset, 
+						 int length) {
+			// A simple counted loop with no loop-carried dependency, which
+			// the JIT can unroll and turn into packed SIMD instructions
+			for(int i=0; i < length; i++) {
+				y[yOffset + i] += alpha * x[xOffset + i];
+			}
+		}
+	} // End ScalarKernel
 }
@@ -0,0 +1,356 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sums the deltaWeights of a set of worker Mlps into a main Mlp and
+ * copies the main Mlp's updated weights back out to the workers, in
+ * parallel. Each layer's flat weight block is split into equal ranges, and
+ * every range is reduced across all workers by one task, so each weight is
+ * written by exactly one thread and the sum is taken in the same worker
+ * order as a serial loop would. Ranges are sized so there are about as many
+ * as threads, between MIN_CHUNK_SIZE and CHUNK_SIZE weights each, so even
+ * HasVocals' small net is spread over every thread. With one thread or
+ * one range, everything runs on the calling thread. The reduce and
+ * broadcast phases are timed separately.
+ * @author Michael DuBois
+ *
+ */
+public class WeightReducer {
+
+	// Most weights per range. 4096 doubles is 32KB, so a range of the main
+	// net's deltaWeights stays in L1/L2 while every worker is added in.
+	public static final int CHUNK_SIZE = 4096;
+	// Fewest weights per range, below which a task costs more to hand off
+	// than it saves
+	public static final int MIN_CHUNK_SIZE = 128;
+
+	private Mlp.Layer[] mMainLayers;
+	// [worker][layer]
+	private Mlp.Layer[][] mWorkerLayers;
+	private ExecutorService mExecutor;
+	// Applies the reduced deltaWeights, or null for plain gradient ascent
+	private IOptimizer mOptimizer;
+	private int mNumWeights;
+	// Whether ranges are handed to the executor
+	private boolean mParallel;
+	private List<Chunk> mReduceChunks;
+	private List<Chunk> mBroadcastChunks;
+
+	private double mScale;
+	private double mLearningRate;
+	// Whether reduce ranges adjust the weights, or only sum deltaWeights
+	private boolean mApply;
+	private long mReduceNanos;
+	private long mBroadcastNanos;
+
+	/**
+	 * Constructs a WeightReducer whose executor has a thread per processor.
+	 * @param main - the mlp the workers' deltaWeights are averaged into
+	 * @param workers - copies of main with the same topology, which may
+	 * 			share main's weights
+	 * @param executor - runs the ranges, or null to run them all on the
+	 * 			calling thread
+	 */
+	public WeightReducer(Mlp main, Mlp[] workers, ExecutorService executor) {
+		this(main, workers, executor, 
+			 Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Constructs a WeightReducer.
+	 * @param main - the mlp the workers' deltaWeights are averaged into
+	 * @param workers - copies of main with the same topology, which may
+	 * 			share main's weights
+	 * @param executor - runs the ranges, or null to run them all on the
+	 * 			calling thread
+	 * @param numThreads - the threads executor can run ranges on
+	 */
+	public WeightReducer(Mlp main, 
+						 Mlp[] workers, 
+						 ExecutorService executor, 
+						 int numThreads) 
+	{
+		mExecutor = executor;
+		mMainLayers = layers(main);
+		mWorkerLayers = new Mlp.Layer[workers.length][];
+		for(int i=0; i < workers.length; i++) {
+			mWorkerLayers[i] = layers(workers[i]);
+			if(mWorkerLayers[i].length != mMainLayers.length)
+				throw new IllegalArgumentException(
+						"Worker " + i + " doesn't match the main mlp.");
+		}
+
+		for(Mlp.Layer layer : mMainLayers)
+			mNumWeights += layer.getWeights().length;
+		
+		// About one range per thread, within the size limits
+		int chunkSize = (executor == null) ? CHUNK_SIZE
+				: (mNumWeights + numThreads - 1) / Math.max(numThreads, 1);
+		chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(CHUNK_SIZE, chunkSize));
+		
+		mReduceChunks = new ArrayList<Chunk>();
+		mBroadcastChunks = new ArrayList<Chunk>();
+		for(int l=0; l < mMainLayers.length; l++) {
+			// Split each layer evenly rather than leave a small remainder
+			int length = mMainLayers[l].getWeights().length;
+			int numChunks = (length + chunkSize - 1) / chunkSize;
+			for(int c=0; c < numChunks; c++) {
+				int start = (int) ((long) length * c / numChunks);
+				int end = (int) ((long) length * (c + 1) / numChunks);
+				mReduceChunks.add(new Chunk(l, start, end, false));
+				mBroadcastChunks.add(new Chunk(l, start, end, true));
+			}
+		}
+		mParallel = executor != null && numThreads > 1 
+				&& mReduceChunks.size() > 1;
+	}
+	
+	/**
+	 * Returns the number of ranges the weights are split into.
+	 * @return
+	 */
+	public int getNumChunks() {
+		return mReduceChunks.size();
+	}
+
+	/**
+	 * Sets the update rule reduce() applies. Its state must already be
+	 * initialized for the main mlp.
+	 * @param optimizer - or null to add learningRate times the reduced
+	 * 			deltaWeights
+	 */
+	public void setOptimizer(IOptimizer optimizer) {
+		mOptimizer = optimizer;
+	}
+	
+	/**
+	 * Adds the workers' deltaWeights, times scale, into the main mlp and
+	 * clears them, then adjusts the main mlp's weights by the result and 
+	 * clears its deltaWeights.
+	 * @param scale - e.g. 1 / the number of samples the workers summed
+	 * @param learningRate - or the optimizer's rate scale, if one is set
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public void reduce(double scale, double learningRate)
+			throws InterruptedException, ExecutionException
+	{
+		long start = System.nanoTime();
+		mScale = scale;
+		mLearningRate = learningRate;
+		mApply = true;
+		if(mOptimizer != null)
+			mOptimizer.step();
+		run(mReduceChunks);
+		mReduceNanos = System.nanoTime() - start;
+	}
+	
+	/**
+	 * Adds the workers' deltaWeights, times scale, into the main mlp's 
+	 * deltaWeights and clears them, leaving every weight as it is.
+	 * @param scale
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public void accumulate(double scale)
+			throws InterruptedException, ExecutionException
+	{
+		long start = System.nanoTime();
+		mScale = scale;
+		mApply = false;
+		run(mReduceChunks);
+		mReduceNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Copies the main mlp's weights to every worker.
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public void broadcast() throws InterruptedException, ExecutionException {
+		long start = System.nanoTime();
+		run(mBroadcastChunks);
+		mBroadcastNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Returns how long the last reduce() took.
+	 * @return
+	 */
+	public long getReduceNanos() {
+		return mReduceNanos;
+	}
+
+	/**
+	 * Returns how long the last broadcast() took.
+	 * @return
+	 */
+	public long getBroadcastNanos() {
+		return mBroadcastNanos;
+	}
+
+	/**
+	 * Runs every chunk and waits for them all.
+	 * @param chunks
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	private void run(List<Chunk> chunks)
+			throws InterruptedException, ExecutionException
+	{
+		if(!mParallel) {
+			for(Chunk chunk : chunks)
+				chunk.call();
+			return;
+		}
+		List<Future<Void>> futures = mExecutor.invokeAll(chunks);
+		for(Future<Void> future : futures)
+			future.get();
+	}
+
+	/**
+	 * Returns an mlp's layers from head to tail.
+	 * @param mlp
+	 * @return
+	 */
+	private static Mlp.Layer[] layers(Mlp mlp) {
+		Mlp.Layer[] layers = new Mlp.Layer[mlp.size()];
+		Mlp.Layer current = mlp.getHead();
+		for(int l=0; current != null; l++) {
+			if(current.getWeights() == null)
+				throw new IllegalStateException(
+						"The mlp's weights must be initialized first.");
+			layers[l] = current;
+			current = current.next();
+		}
+		return layers;
+	}
+
+	/**
+	 * Reduces or broadcasts one range of one layer's weights.
+	 */
+	private class Chunk implements Callable<Void> {
+		private int mLayer;
+		private int mStart;
+		private int mEnd;
+		private boolean mBroadcast;
+
+		Chunk(int layer, int start, int end, boolean broadcast) {
+			mLayer = layer;
+			mStart = start;
+			mEnd = end;
+			mBroadcast = broadcast;
+		}
+
+		@Override
+		public Void call() {
+			Mlp.Layer main = mMainLayers[mLayer];
+			double[] weights = main.getWeights();
+			int length = mEnd - mStart;
+
+			if(mBroadcast) {
+				for(Mlp.Layer[] worker : mWorkerLayers) {
+					// Workers that share main's weights are already current
+					double[] workerWeights = worker[mLayer].getWeights();
+					if(workerWeights != weights)
+						System.arraycopy(weights, mStart,
+										 workerWeights, mStart,
+										 length);
+				}
+				return null;
+			}
+
+			double[] deltaWeights = main.getDeltaWeights();
+			for(Mlp.Layer[] worker : mWorkerLayers) {
+				double[] workerDeltaWeights = worker[mLayer].getDeltaWeights();
+				Vector.axpy(mScale, workerDeltaWeights, mStart,
+							deltaWeights, mStart, length);
+				Arrays.fill(workerDeltaWeights, mStart, mEnd, 0);
+			}
+			if(!mApply)
+				return null;
+
+			// Adjust weights in-place by the summed deltaWeights
+			if(mOptimizer != null)
+				mOptimizer.update(mLayer, weights, deltaWeights, 
+								  mStart, mEnd, mLearningRate);
+			else
+				Vector.axpy(mLearningRate, deltaWeights, mStart,
+							weights, mStart, length);
+			Arrays.fill(deltaWeights, mStart, mEnd, 0);
+			return null;
+		}
+	} // End Chunk
+
+	/**
+	 * Times the reduce and broadcast phases, serial against parallel, for
+	 * 1 to 64 workers, with a thread per worker as MlpTrainer has. The
+	 * ranges column is how many pieces the parallel reducer splits the
+	 * weights into.
+	 * Usage: WeightReducer [hiddenSize ...]
+	 * The default hidden sizes are HasVocals' 30 and 10.
+	 */
+	public static void main(String[] args) throws Exception {
+		int[] hidden = new int[] {30, 10};
+		if(args.length > 0) {
+			hidden = new int[args.length];
+			for(int i=0; i < args.length; i++)
+				hidden[i] = Integer.parseInt(args[i]);
+		}
+		Mlp main = new Mlp();
+		for(int size : hidden)
+			main.append(new Mlp.Layer(size, new StandardLogistic(1)));
+		main.append(new Mlp.Layer(1, new SoftMax(1)));
+		main.evaluate(new double[39], true);
+
+		int iterations = 50;
+		System.out.println("Topology 39-" + Arrays.toString(hidden)
+				+ "-1, " + Runtime.getRuntime().availableProcessors()
+				+ " processors, ms per call:");
+		System.out.println("workers | ranges | serial reduce "
+				+ "| parallel reduce | serial broadcast | parallel broadcast");
+		for(int numWorkers=1; numWorkers <= 64; numWorkers *= 2) {
+			Mlp[] workers = new Mlp[numWorkers];
+			for(int i=0; i < numWorkers; i++)
+				workers[i] = new Mlp(main);
+			ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+
+			WeightReducer serial = new WeightReducer(main, workers, null);
+			WeightReducer parallel = 
+					new WeightReducer(main, workers, executor, numWorkers);
+			long[] nanos = new long[4];
+			for(int pass=0; pass < 2; pass++) {
+				// The first pass warms up
+				Arrays.fill(nanos, 0);
+				for(int i=0; i < iterations; i++) {
+					serial.reduce(1, 0);
+					serial.broadcast();
+					nanos[0] += serial.getReduceNanos();
+					nanos[2] += serial.getBroadcastNanos();
+					parallel.reduce(1, 0);
+					parallel.broadcast();
+					nanos[1] += parallel.getReduceNanos();
+					nanos[3] += parallel.getBroadcastNanos();
+				}
+			}
+			executor.shutdown();
+
+			StringBuilder row = new StringBuilder(
+					MlpTrainer.paddedCell("" + numWorkers, 8));
+			row.append("| ").append(MlpTrainer.paddedCell(
+					"" + parallel.getNumChunks(), 7));
+			for(long total : nanos) {
+				double ms = total / 1e6 / iterations;
+				row.append("| ").append(MlpTrainer.paddedCell(
+						"" + (Math.round(ms * 1000D) / 1000D), 16));
+			}
+			System.out.println(row);
+		}
+	}
+}